@@ -16,19 +16,38 @@
  */
 package cliente;
 
+import comun.Actualizacion;
+import comun.Confirmacion;
 import comun.Crc16;
+import comun.Decodificador;
+import comun.Lote;
 import comun.Mensaje;
 import comun.MessageFormatException;
 import comun.RegistroCorrecto;
 import comun.RegistroSolicitud;
+import comun.RetoRegistro;
 import comun.TipoMensaje;
-import java.io.ByteArrayInputStream;
+import comun.VentanaEnvio;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.SocketAddress;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Cliente del videojuego.
@@ -43,9 +62,42 @@ public class Cliente {
     // Hebra donde se esperará continuamente nuevos paquetes.
     private Thread mainThread;
     
+    // Buffers y paquetes reutilizados para recibir y enviar sin reservar
+    // memoria por cada mensaje.
+    private final byte[] bufferEntrada = new byte[Mensaje.GetMaxMsgSize()];
+    private final ByteBuffer datosEntrada = ByteBuffer.wrap(this.bufferEntrada);
+    private final DatagramPacket paqueteEntrada =
+            new DatagramPacket(this.bufferEntrada, this.bufferEntrada.length);
+    private final Decodificador decodificador = new Decodificador();
+    
+    // Actualización reutilizada para entregar las de un lote.
+    private final Actualizacion actualizacionLote = new Actualizacion();
+    
+    private final byte[] bufferSalida = new byte[Mensaje.GetMaxMsgSize()];
+    private final ByteBuffer datosSalida = ByteBuffer.wrap(this.bufferSalida);
+    private final DatagramPacket paqueteSalida =
+            new DatagramPacket(this.bufferSalida, this.bufferSalida.length);
+    
+    // Mensajes enviados de forma fiable pendientes de confirmación.
+    // Se protege con el monitor de esta instancia.
+    private final VentanaEnvio ventana = new VentanaEnvio();
+    
+    // Tiempo máximo que se bloquea la recepción para poder revisar
+    // las retransmisiones, en milisegundos.
+    private static final int EsperaRecepcion = 20;
+    
+    // Respuestas pendientes a peticiones, por número de secuencia.
+    // La hebra que recibe las completa y las saca de la tabla.
+    private final ConcurrentMap<Short, Respuesta> pendientes = new ConcurrentHashMap<>();
+    
+    // Tiempo de espera de cada intento de inicio de sesión en milisegundos
+    // y número de intentos.
+    private static final long EsperaRegistro = 1000;
+    private static final int IntentosRegistro = 3;
+    
     // Cola para implementar el defaultListener, se irán acumulando los mensajes
-    // recibidos.
-    private final Queue<Mensaje> msgRecibidos = new ArrayDeque<>();
+    // recibidos. La hebra que recibe los pasa a quien espere sin sondear.
+    private final BlockingQueue<Mensaje> msgRecibidos = new LinkedBlockingQueue<>();
     
     // Se ejecutará al recibir mensajes de todo tipo excepto ACTUALIZACION. 
     private MensajeListener defaultListener;
@@ -53,6 +105,13 @@ public class Cliente {
     // Se ejecutará al recibir mensajes de tipo ACTUALIZACION.
     // Si el método es null se ejecutará el defaultListener.
     private MensajeListener updateListener;
+    
+    // Hebra que recibe las actualizaciones del grupo multicast del mapa, si
+    // el servidor lo usa. Las actualizaciones llegan por las dos hebras, así
+    // que se entregan a los listener con este cerrojo para que no se llamen
+    // a la vez.
+    private ReceptorGrupo receptorGrupo;
+    private final Object cerrojoEntrega = new Object();
 
     /**
      * Crea una nueva instancia con el socket a usar.
@@ -80,6 +139,8 @@ public class Cliente {
     /**
      * Establece el listener para los mensajes de actualización.
      * En caso de ser null, se enviará hacia el defaultListener.
+     * El mensaje que recibe este listener se reutiliza para la siguiente
+     * actualización, así que no se debe guardar.
      * 
      * @param value Nuevo listener.
      */
@@ -88,18 +149,43 @@ public class Cliente {
     }
 
     /**
-     * Interrumpe la hebra que recibe mensajes del servidor.     * 
+     * Establece quién recibe el resultado de los envíos fiables.
+     * Se llama desde la hebra que recibe, así que no debe bloquearse.
+     * 
+     * @param aviso Receptor de los resultados o null.
+     */
+    public synchronized void setAvisoEntrega(final VentanaEnvio.Aviso aviso) {
+        this.ventana.setAviso(aviso);
+    }
+
+    /**
+     * Interrumpe la hebra que recibe mensajes del servidor.
+     * Cancela las peticiones que esperan respuesta.
      */
     public void parar() {
         if (this.mainThread != null && this.mainThread.isAlive()) {
             this.mainThread.interrupt();
         }
+        
+        if (this.receptorGrupo != null)
+            this.receptorGrupo.cierra();
+        
+        for (Respuesta respuesta : this.pendientes.values())
+            respuesta.cancel(false);
     }
 
     /**
      * Comienza la hebra para recibir mensajes del servidor.     * 
      */
     public void comenzar() {
+        // La recepción no se bloquea indefinidamente para que la misma
+        // hebra pueda retransmitir los mensajes sin confirmar.
+        try {
+            this.socket.setSoTimeout(EsperaRecepcion);
+        } catch (SocketException ex) {
+            System.err.println(ex.getMessage());
+        }
+        
         this.mainThread = new Thread() {
             @Override
             public void run() {
@@ -116,23 +202,41 @@ public class Cliente {
      */
     private void siguienteMensaje() {
         // Primero recibe el paquete
-        byte[] buffer = new byte[Mensaje.GetMaxMsgSize()];
-        DatagramPacket paquete = new DatagramPacket(buffer, buffer.length);
+        DatagramPacket paquete = this.paqueteEntrada;
+        paquete.setLength(this.bufferEntrada.length);
         try {
             socket.receive(paquete);
+        } catch (SocketTimeoutException ex) {
+            this.retransmite();
+            return;
         } catch (IOException ex) {
             System.err.println(ex.getMessage());
+            return;
         }
+        
+        this.retransmite();
 
         // Comprueba que sea para nosotros
         if (!paquete.getSocketAddress().equals(this.addr))
             return;
 
         // Obtiene el mensaje asociado a esos datos.
+        // Las actualizaciones para su listener y las confirmaciones que nadie
+        // espera se decodifican sobre una instancia reutilizada. El resto se
+        // entregan a otras hebras, así que se crea una instancia nueva.
         Mensaje mensaje = null;
+        ByteBuffer datos = this.datosEntrada;
+        datos.clear();
+        datos.limit(paquete.getLength());
         try {
-            ByteArrayInputStream inStream = new ByteArrayInputStream(paquete.getData());
-            mensaje = Mensaje.FromStream(inStream);
+            TipoMensaje tipo = Mensaje.PeekTipo(datos);
+            if ((tipo == TipoMensaje.CONFIRMACION && this.pendientes.isEmpty())
+                    || tipo == TipoMensaje.LOTE || (this.updateListener != null
+                    && (tipo == TipoMensaje.ACTUALIZACION
+                    || tipo == TipoMensaje.SALIDA_VISTA)))
+                mensaje = this.decodificador.decodifica(datos);
+            else
+                mensaje = Mensaje.FromBuffer(datos);
         } catch (MessageFormatException ex) {
             // Vale algo ha fallado por aquí...
             System.err.println(ex.getMessage());
@@ -147,43 +251,241 @@ public class Cliente {
             // Respuestas normales para el por defecto, general.
             case REGISTRO_CORRECTO:
             case REGISTRO_INCORRECTO:
+            case RETO_REGISTRO:
+                if (!this.completaRespuesta(mensaje))
+                    this.defaultListener.mensajeRecibido(mensaje);
+                break;
+                
+            // Confirmaciones de la ventana de envío.
             case CONFIRMACION:
-                this.defaultListener.mensajeRecibido(mensaje);
+                this.confirma((Confirmacion)mensaje);
+                this.completaRespuesta(mensaje);
                 break;
 
-            // Respuesta de actualización.
+            // Respuesta de actualización y personajes que ya no se ven,
+            // que van con las actualizaciones.
             case ACTUALIZACION:
-                if (this.updateListener != null)
-                    this.updateListener.mensajeRecibido(mensaje);
-                else
-                    this.defaultListener.mensajeRecibido(mensaje);
+            case SALIDA_VISTA:
+                this.entregaActualizacion(mensaje);
+                break;
+                
+            // Varias actualizaciones juntas, se entregan una a una.
+            case LOTE:
+                this.entregaLote((Lote)mensaje);
                 break;
         }
     }
+    
+    /**
+     * Entrega las actualizaciones de un lote a su listener.
+     * 
+     * @param lote Lote recibido.
+     */
+    private void entregaLote(final Lote lote) {
+        synchronized (this.cerrojoEntrega) {
+            for (int i = 0; i < lote.getNumRegistros(); i++) {
+                if (this.updateListener != null) {
+                    lote.getActualizacion(i, this.actualizacionLote);
+                    this.updateListener.mensajeRecibido(this.actualizacionLote);
+                } else {
+                    // El listener por defecto puede guardarlas.
+                    Actualizacion actual = new Actualizacion();
+                    lote.getActualizacion(i, actual);
+                    this.defaultListener.mensajeRecibido(actual);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Entrega una actualización o una salida de vista a su listener.
+     * Las salidas de vista sólo se entregan al de actualizaciones.
+     * 
+     * @param mensaje Mensaje recibido.
+     */
+    private void entregaActualizacion(final Mensaje mensaje) {
+        synchronized (this.cerrojoEntrega) {
+            if (this.updateListener != null)
+                this.updateListener.mensajeRecibido(mensaje);
+            else if (mensaje.getTipo() == TipoMensaje.ACTUALIZACION)
+                this.defaultListener.mensajeRecibido(mensaje);
+        }
+    }
 
+    /**
+     * Entrega un mensaje a la petición que lo espera, si la hay.
+     * 
+     * @param mensaje Mensaje recibido.
+     * @return Verdadero si era la respuesta de una petición pendiente.
+     */
+    private boolean completaRespuesta(final Mensaje mensaje) {
+        Respuesta respuesta = this.pendientes.get(mensaje.getNumSecuencia());
+        return respuesta != null && respuesta.acepta(mensaje.getTipo()) &&
+                respuesta.completa(mensaje);
+    }
+    
+    /**
+     * Envía una petición al servidor sin bloquear.
+     * La respuesta es el primer mensaje recibido con el mismo número de
+     * secuencia y uno de los tipos indicados. Si se vence el tiempo de espera
+     * se debe cancelar para liberar su número de secuencia.
+     * 
+     * @param peticion Mensaje a enviar.
+     * @param tipos Tipos de mensaje aceptados como respuesta.
+     * @return Respuesta pendiente.
+     */
+    public Future<Mensaje> solicita(final Mensaje peticion,
+            final TipoMensaje... tipos) {
+        short numSec = (short)(peticion.getNumSecuencia() & 0x0FFF);
+        Respuesta respuesta = new Respuesta(this.pendientes, numSec, tipos);
+        
+        // Se registra antes de enviar para no perder una respuesta rápida.
+        Respuesta anterior = this.pendientes.put(numSec, respuesta);
+        if (anterior != null)
+            anterior.cancel(false);
+        
+        this.envia(peticion);
+        return respuesta;
+    }
+    
     /**
      * Envía un mensaje hacia el servidor.
      * 
      * @param mensaje Mensaje a enviar.
      */
-    public void envia(final Mensaje mensaje) {
+    public synchronized void envia(final Mensaje mensaje) {
+        this.envia(this.codifica(mensaje));
+    }
+    
+    /**
+     * Escribe un mensaje en el buffer de salida seguido de su CRC16, que el
+     * servidor comprueba y devuelve en la confirmación.
+     * Se debe llamar con el monitor de la instancia.
+     * 
+     * @param mensaje Mensaje a codificar.
+     * @return Buffer de salida con el paquete entre su posición y su límite.
+     */
+    private ByteBuffer codifica(final Mensaje mensaje) {
+        ByteBuffer datos = this.datosSalida;
+        datos.clear();
+        mensaje.write(datos);
+        datos.putShort(Crc16.calculate(datos, 0, datos.position()));
+        datos.flip();
+        return datos;
+    }
+
+    /**
+     * Envía un mensaje hacia el servidor de forma fiable.
+     * No espera a la confirmación, el mensaje se guarda en la ventana de envío
+     * y se retransmite si no se confirma a tiempo. Sólo se bloquea si la
+     * ventana está llena.
+     * 
+     * @param mensaje Mensaje a enviar. Se puede reutilizar al volver.
+     */
+    public synchronized void enviaFiable(final Mensaje mensaje) {
+        if (!this.esperaHueco(mensaje.getNumSecuencia()))
+            return;
+        
+        ByteBuffer datos = this.codifica(mensaje);
+        this.ventana.registra(mensaje.getNumSecuencia(), datos, getAhora());
+        
+        this.envia(datos);
+    }
+    
+    /**
+     * Espera hasta que haya hueco en la ventana de envío para un mensaje.
+     * 
+     * @param numSec Número de secuencia del mensaje.
+     * @return Falso si se ha interrumpido la espera.
+     */
+    public synchronized boolean esperaHueco(final short numSec) {
         try {
-            // Lo convierte a un vector de bytes.
-            byte[] data = mensaje.write();
-            
-            // Crea el paquete con la dirección del servidor.
-            DatagramPacket paquete = new DatagramPacket(
-                    data,
-                    data.length,
-                    this.addr
-            );
-            
-            // Lo envía por el socket.
+            while (!this.ventana.hayHueco(numSec))
+                this.wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Espera hasta que se confirmen todos los mensajes fiables enviados.
+     * 
+     * @param timeout Tiempo máximo de espera en milisegundos.
+     * @return Verdadero si se han confirmado todos.
+     */
+    public synchronized boolean esperaConfirmaciones(final long timeout) {
+        long limite = getAhora() + timeout;
+        try {
+            long restante;
+            while (this.ventana.getPendientes() > 0 &&
+                    (restante = limite - getAhora()) > 0)
+                this.wait(restante);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        return this.ventana.getPendientes() == 0;
+    }
+    
+    /**
+     * Procesa una confirmación del servidor liberando la ventana de envío.
+     * 
+     * @param confirmacion Mensaje de confirmación.
+     */
+    private synchronized void confirma(final Confirmacion confirmacion) {
+        this.ventana.confirma(confirmacion, getAhora());
+        this.notifyAll();
+    }
+    
+    /**
+     * Retransmite los mensajes fiables cuyo temporizador ha vencido.
+     */
+    private synchronized void retransmite() {
+        int antes = this.ventana.getPendientes();
+        this.ventana.retransmite(getAhora(), this.emisor);
+        
+        // Los que se descartan por superar los reintentos liberan hueco.
+        if (this.ventana.getPendientes() != antes)
+            this.notifyAll();
+    }
+    
+    // Envía los mensajes que retransmite la ventana.
+    private final VentanaEnvio.Emisor emisor = new VentanaEnvio.Emisor() {
+        @Override
+        public void envia(ByteBuffer datos) {
+            Cliente.this.envia(datos);
+        }
+    };
+    
+    /**
+     * Envía un mensaje ya codificado por el socket.
+     * Se debe llamar con el monitor de la instancia.
+     * 
+     * @param datos Buffer con el mensaje entre su posición y su límite.
+     */
+    private void envia(final ByteBuffer datos) {
+        try {
+            DatagramPacket paquete = this.paqueteSalida;
+            paquete.setData(datos.array(), datos.arrayOffset() + datos.position(),
+                    datos.remaining());
+            paquete.setSocketAddress(this.addr);
             this.socket.send(paquete);
         } catch (IOException ex) {
             System.err.println("ERROR: " + ex.getMessage());
         }
     }
+    
+    /**
+     * Obtiene el instante actual para los temporizadores.
+     * 
+     * @return Instante en milisegundos.
+     */
+    private static long getAhora() {
+        return System.nanoTime() / 1000000;
+    }
 
     /**
      * Bloquea la ejecución del programa hasta que se recibe un mensaje del
@@ -193,13 +495,9 @@ public class Cliente {
      */
     public Mensaje recibeBloqueante() {
         try {
-            // Esta no es la mejor forma de hacerlo... habría que usar sólo
-            // los listener, pero en algunos sitios simplifica la implementación.
-            while (msgRecibidos.isEmpty())
-                Thread.sleep(100);
-            
-            return msgRecibidos.poll();
+            return msgRecibidos.take();
         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
         
         return null;
@@ -216,22 +514,187 @@ public class Cliente {
         short hexId = Short.parseShort(userId, 16);
         short hashPass = Crc16.calculate(password.getBytes());
         
-        // Envía la solicitud
+        // Envía la solicitud y espera la respuesta. Si se pierde algún
+        // paquete se repite, el servidor responde igual a la repetición.
+        // La primera vez el servidor responde con un reto y hay que
+        // repetirla con su cookie, sin contar como un intento.
+        boolean retado = false;
         RegistroSolicitud solicitud = new RegistroSolicitud(
                 (short)0,
                 hexId,
                 hashPass
         );
-        this.envia(solicitud);
         
-        // Espera la respuesta
-        Mensaje respuesta = this.recibeBloqueante();
+        for (int i = 0; i < IntentosRegistro; i++) {
+            Future<Mensaje> respuesta = this.solicita(
+                    solicitud,
+                    TipoMensaje.REGISTRO_CORRECTO,
+                    TipoMensaje.REGISTRO_INCORRECTO,
+                    TipoMensaje.RETO_REGISTRO
+            );
+            
+            try {
+                // La procesa
+                Mensaje mensaje = respuesta.get(EsperaRegistro, TimeUnit.MILLISECONDS);
+                if (mensaje.getTipo() == TipoMensaje.RETO_REGISTRO) {
+                    solicitud.setCookie(((RetoRegistro)mensaje).getCookie());
+                    if (!retado) {
+                        retado = true;
+                        i--;
+                    }
+                    continue;
+                }
+                
+                if (mensaje.getTipo() != TipoMensaje.REGISTRO_CORRECTO)
+                    return -1;
+                
+                // Si el mapa tiene grupo multicast, las actualizaciones de
+                // los demás llegan por él.
+                RegistroCorrecto correcto = (RegistroCorrecto)mensaje;
+                if (correcto.getGrupo() != 0)
+                    this.uneGrupo(hexId, correcto.getGrupo(),
+                            correcto.getPuertoGrupo());
+                return correcto.getMapaId();
+            } catch (TimeoutException ex) {
+                respuesta.cancel(false);
+            } catch (InterruptedException ex) {
+                respuesta.cancel(false);
+                Thread.currentThread().interrupt();
+                return -1;
+            } catch (ExecutionException | CancellationException ex) {
+                return -1;
+            }
+        }
+        
+        System.err.println("El servidor no responde.");
+        return -1;
+    }
+    
+    /**
+     * Se une al grupo multicast del mapa y empieza a recibir de él.
+     * El socket se asocia a la dirección del grupo para que, en Linux, no
+     * reciba los de otros mapas aunque haya varios clientes en el mismo
+     * equipo. Se une por la interfaz con la que se llega al servidor, así
+     * que funciona también por loopback. Si falla, sólo se recibe lo que
+     * llegue por unicast.
+     * 
+     * @param userId ID del usuario, cuyas actualizaciones se descartan.
+     * @param direccion Dirección IPv4 del grupo.
+     * @param puerto Puerto del grupo.
+     */
+    private void uneGrupo(final short userId, final int direccion,
+            final int puerto) {
+        if (this.receptorGrupo != null)
+            this.receptorGrupo.cierra();
+        this.receptorGrupo = null;
         
-        // La procesa
-        if (respuesta.getTipo() == TipoMensaje.REGISTRO_CORRECTO)
-            return ((RegistroCorrecto)respuesta).getMapaId();
-        else
-            return -1;
+        MulticastSocket socketGrupo = null;
+        try {
+            InetAddress ip = InetAddress.getByAddress(new byte[] {
+                (byte)(direccion >>> 24), (byte)(direccion >>> 16),
+                (byte)(direccion >>> 8), (byte)direccion
+            });
+            InetSocketAddress grupo = new InetSocketAddress(ip, puerto);
+            
+            try {
+                socketGrupo = new MulticastSocket(grupo);
+            } catch (IOException ex) {
+                // Hay sistemas que no permiten asociarse a una dirección
+                // multicast, ahí se filtra por el puerto.
+                socketGrupo = new MulticastSocket(puerto);
+            }
+            
+            // La interfaz es la de la dirección local con la que se llega
+            // al servidor. Conectar un socket UDP no envía nada.
+            NetworkInterface interfaz;
+            try (DatagramSocket sonda = new DatagramSocket()) {
+                sonda.connect(this.addr);
+                interfaz = NetworkInterface.getByInetAddress(
+                        sonda.getLocalAddress());
+            }
+            
+            socketGrupo.joinGroup(grupo, interfaz);
+        } catch (IOException ex) {
+            System.err.println("No se puede unir al grupo multicast: "
+                    + ex.getMessage());
+            if (socketGrupo != null)
+                socketGrupo.close();
+            return;
+        }
+        
+        this.receptorGrupo = new ReceptorGrupo(socketGrupo, userId);
+        this.receptorGrupo.start();
+    }
+    
+    /**
+     * Hebra que recibe las actualizaciones del grupo multicast del mapa.
+     * Tiene su propio buffer y decodificador. Sólo acepta las que envía el
+     * servidor y descarta las del propio personaje, que el grupo también
+     * le devuelve.
+     */
+    private class ReceptorGrupo extends Thread {
+        private final MulticastSocket socket;
+        private final short userId;
+        private final byte[] buffer = new byte[Mensaje.GetMaxMsgSize()];
+        private final ByteBuffer datos = ByteBuffer.wrap(this.buffer);
+        private final DatagramPacket paquete =
+                new DatagramPacket(this.buffer, this.buffer.length);
+        private final Decodificador decodificador = new Decodificador();
+        
+        /**
+         * Crea una nueva instancia de la hebra.
+         * 
+         * @param socket Socket unido al grupo.
+         * @param userId ID del usuario de este cliente.
+         */
+        public ReceptorGrupo(final MulticastSocket socket, final short userId) {
+            super("ReceptorGrupo");
+            this.setDaemon(true);
+            this.socket = socket;
+            this.userId = userId;
+        }
+        
+        /**
+         * Cierra el socket, lo que termina la hebra.
+         */
+        public void cierra() {
+            this.socket.close();
+        }
+        
+        @Override
+        public void run() {
+            while (!this.socket.isClosed()) {
+                this.paquete.setLength(this.buffer.length);
+                try {
+                    this.socket.receive(this.paquete);
+                } catch (IOException ex) {
+                    if (!this.socket.isClosed())
+                        System.err.println(ex.getMessage());
+                    continue;
+                }
+                
+                if (!this.paquete.getSocketAddress().equals(addr))
+                    continue;
+                
+                this.datos.clear();
+                this.datos.limit(this.paquete.getLength());
+                if (Mensaje.PeekTipo(this.datos) != TipoMensaje.ACTUALIZACION)
+                    continue;
+                
+                // Como en la otra hebra, el listener por defecto puede
+                // guardarlas, así que para él se crea una instancia nueva.
+                try {
+                    Actualizacion actualizacion = (Actualizacion)(
+                            (updateListener != null)
+                            ? this.decodificador.decodifica(this.datos)
+                            : Mensaje.FromBuffer(this.datos));
+                    if (actualizacion.getUserId() != this.userId)
+                        entregaActualizacion(actualizacion);
+                } catch (MessageFormatException ex) {
+                    System.err.println(ex.getMessage());
+                }
+            }
+        }
     }
     
     /**
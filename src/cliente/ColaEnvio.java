@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package cliente;
+
+import comun.Actualizacion;
+import comun.ActualizacionDelta;
+import comun.Mensaje;
+import comun.Secuencia;
+import comun.VentanaEnvio;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Cola de salida de los estados de los personajes.
+ * La interfaz gráfica publica los cambios sin bloquearse y una hebra de red
+ * los envía de forma fiable. Si se publican varios estados del mismo
+ * personaje antes de poder enviarlos, sólo se envía el último.
+ * 
+ * Si está activado, cada estado se envía como delta respecto al último estado
+ * del mismo personaje que el servidor ha confirmado. Si no hay ninguno
+ * reciente o se ha perdido algún envío de ese personaje, se envía completo.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class ColaEnvio implements VentanaEnvio.Aviso {
+    private final Cliente cliente;
+    private final Thread hebra;
+    
+    // Estados pendientes de enviar por ID de personaje, en orden de
+    // publicación. Se protegen con el monitor de esta instancia.
+    private final Map<Short, Estado> pendientes = new LinkedHashMap<>();
+    private final Queue<Estado> libres = new ArrayDeque<>();
+    private boolean enviando;
+    
+    // Variables de la hebra de red.
+    private final Actualizacion actualizacion = new Actualizacion();
+    private final ActualizacionDelta delta = new ActualizacionDelta();
+    private short numSec = 0;
+    
+    // Estado enviado en cada hueco de la ventana de envío y último estado
+    // confirmado de cada personaje, base de las deltas. Se protegen con
+    // el monitor de esta instancia.
+    private final Actualizacion[] enviados = new Actualizacion[VentanaEnvio.Tamanio];
+    private final Map<Short, Actualizacion> bases = new HashMap<>();
+    
+    private volatile EntregaListener listener;
+    private volatile boolean conDelta = true;
+    
+    /**
+     * Crea la cola y comienza la hebra de red.
+     * 
+     * @param cliente Cliente por el que enviar los estados.
+     */
+    public ColaEnvio(final Cliente cliente) {
+        this.cliente = cliente;
+        this.cliente.setAvisoEntrega(this);
+        for (int i = 0; i < this.enviados.length; i++)
+            this.enviados[i] = new Actualizacion();
+        
+        this.hebra = new Thread("Envios") {
+            @Override
+            public void run() {
+                bucle();
+            }
+        };
+        this.hebra.setDaemon(true);
+        this.hebra.start();
+    }
+    
+    /**
+     * Establece el listener del resultado de los envíos.
+     * 
+     * @param value Nuevo listener o null.
+     */
+    public void setEntregaListener(final EntregaListener value) {
+        this.listener = value;
+    }
+    
+    /**
+     * Activa o desactiva el envío de deltas.
+     * 
+     * @param value Si se envían deltas cuando sea posible.
+     */
+    public void setDelta(final boolean value) {
+        this.conDelta = value;
+    }
+    
+    /**
+     * Publica el estado de un personaje para enviarlo al servidor.
+     * No se bloquea. Si había un estado del mismo personaje sin enviar,
+     * se reemplaza.
+     * 
+     * @param p Personaje.
+     * @param tiempo Tiempo de juego en segundos.
+     */
+    public synchronized void publica(final Personaje p, final short tiempo) {
+        Estado estado = this.pendientes.get(p.getId());
+        if (estado == null) {
+            estado = this.libres.poll();
+            if (estado == null)
+                estado = new Estado();
+            this.pendientes.put(p.getId(), estado);
+        }
+        
+        estado.userId = p.getId();
+        estado.clase  = p.getTipo().getId();
+        estado.exp    = p.getExp();
+        estado.salud  = p.getSalud();
+        estado.vida   = p.getVida();
+        estado.posicion = p.getPosicion();
+        estado.tiempo = tiempo;
+        this.notifyAll();
+    }
+    
+    /**
+     * Espera hasta que se hayan enviado y confirmado todos los estados.
+     * 
+     * @param timeout Tiempo máximo de espera en milisegundos.
+     * @return Verdadero si se han confirmado todos.
+     */
+    public boolean vacia(final long timeout) {
+        long limite = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            try {
+                long restante;
+                while ((!this.pendientes.isEmpty() || this.enviando) &&
+                        (restante = limite - System.currentTimeMillis()) > 0)
+                    this.wait(restante);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            
+            if (!this.pendientes.isEmpty() || this.enviando)
+                return false;
+        }
+        
+        long restante = limite - System.currentTimeMillis();
+        return this.cliente.esperaConfirmaciones(Math.max(restante, 0));
+    }
+    
+    /**
+     * Detiene la hebra de red. Los estados pendientes no se envían.
+     */
+    public void parar() {
+        this.hebra.interrupt();
+    }
+    
+    /**
+     * Bucle de la hebra de red.
+     * Saca los estados en orden de publicación y los envía. El envío sólo
+     * se bloquea si la ventana de envío está llena.
+     */
+    private void bucle() {
+        Actualizacion actual = this.actualizacion;
+        while (!Thread.currentThread().isInterrupted()) {
+            // Antes de reutilizar el hueco del estado enviado hay que
+            // esperar a que se confirme el que lo ocupaba.
+            short siguiente = (short)(this.numSec + 1);
+            if (!this.cliente.esperaHueco(siguiente))
+                return;
+            
+            Mensaje mensaje;
+            synchronized (this) {
+                try {
+                    while (this.pendientes.isEmpty())
+                        this.wait();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                
+                Iterator<Estado> it = this.pendientes.values().iterator();
+                Estado estado = it.next();
+                it.remove();
+                
+                this.numSec = siguiente;
+                actual.set(this.numSec, estado.userId, estado.clase,
+                        estado.exp, estado.salud, estado.vida,
+                        estado.posicion, estado.tiempo);
+                this.libres.offer(estado);
+                this.enviando = true;
+                this.enviados[this.numSec & (VentanaEnvio.Tamanio - 1)].copia(actual);
+                
+                // La base tiene que estar todavía en el historial del
+                // servidor, que guarda una ventana.
+                mensaje = actual;
+                Actualizacion base = this.bases.get(actual.getUserId());
+                if (this.conDelta && base != null && Secuencia.distancia(
+                        base.getNumSecuencia(), this.numSec) < VentanaEnvio.Tamanio) {
+                    this.delta.set(base, actual);
+                    mensaje = this.delta;
+                }
+            }
+            
+            this.cliente.enviaFiable(mensaje);
+            
+            synchronized (this) {
+                this.enviando = false;
+                this.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void confirmado(final short numSec) {
+        short userId;
+        synchronized (this) {
+            Actualizacion enviado = this.enviados[numSec & (VentanaEnvio.Tamanio - 1)];
+            userId = enviado.getUserId();
+            
+            // Pasa a ser la base de su personaje si es la más reciente.
+            Actualizacion base = this.bases.get(userId);
+            if (base == null) {
+                base = new Actualizacion();
+                base.copia(enviado);
+                this.bases.put(userId, base);
+            } else if (Secuencia.distancia(base.getNumSecuencia(), numSec) > 0) {
+                base.copia(enviado);
+            }
+        }
+        
+        EntregaListener l = this.listener;
+        if (l != null)
+            l.entregado(userId);
+    }
+
+    @Override
+    public void descartado(final short numSec) {
+        short userId;
+        synchronized (this) {
+            // El siguiente estado de este personaje irá completo.
+            userId = this.enviados[numSec & (VentanaEnvio.Tamanio - 1)].getUserId();
+            this.bases.remove(userId);
+        }
+        
+        EntregaListener l = this.listener;
+        if (l != null)
+            l.perdido(userId);
+    }
+    
+    /**
+     * Estado de un personaje pendiente de enviar.
+     */
+    private static class Estado {
+        private short userId;
+        private byte clase;
+        private byte exp;
+        private byte salud;
+        private byte vida;
+        private short posicion;
+        private short tiempo;
+    }
+}
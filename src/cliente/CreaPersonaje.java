@@ -17,6 +17,7 @@
 
 package cliente;
 
+import comun.Mapa;
 import javax.swing.ImageIcon;
 
 /**
@@ -56,7 +57,7 @@ public class CreaPersonaje extends javax.swing.JDialog {
                 (byte)((int)spinHp.getValue()),
                 (byte)((int)spinSalud.getValue()),
                 (byte)((int)spinExp.getValue()),
-                (short)(Math.random() * 100),
+                (short)(Math.random() * Mapa.NumCeldas),
                 (short)mapId
         );
     }
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package cliente;
+
+/**
+ * Interfaz para recibir el resultado del envío de los estados de los personajes.
+ * Se ejecuta en la hebra de red, así que no debe bloquearse ni tocar
+ * directamente la interfaz gráfica.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public interface EntregaListener {
+    /**
+     * El servidor ha confirmado un estado del personaje.
+     * 
+     * @param userId ID del personaje.
+     */
+    abstract void entregado(short userId);
+    
+    /**
+     * Se ha descartado un estado del personaje tras agotar los reintentos.
+     * 
+     * @param userId ID del personaje.
+     */
+    abstract void perdido(short userId);
+}
@@ -18,17 +18,22 @@
 package cliente;
 
 import comun.Actualizacion;
+import comun.Mapa;
 import comun.Mensaje;
+import comun.SalidaVista;
 import comun.TipoMensaje;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.GraphicsConfiguration;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.image.VolatileImage;
 import java.io.File;
 import java.util.Date;
 import java.util.HashMap;
@@ -36,6 +41,7 @@ import java.util.Map;
 import javax.swing.AbstractAction;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 
 /**
@@ -43,22 +49,42 @@ import javax.swing.Timer;
  * @author Benito Palacios Sánchez
  */
 public class JMapa extends JPanel implements KeyListener, MouseListener,
-        MensajeListener {
-    private static final int CeldasPorFila = 10;
-    private static final int TamanioCelda  = 40;
+        MensajeListener, EntregaListener {
+    private static final int CeldasVista  = 10;
+    private static final int TamanioCelda = 40;
     private static final int AtaqueDuracion = 1000;
+    
+    // Espacio que ocupan las etiquetas de texto de un personaje por encima
+    // y a la derecha de su celda, para repintarlas con él.
+    private static final int MargenEtiqueta = 24;
+    private static final int AnchoEtiqueta  = 2 * TamanioCelda;
     private final String MapaPath = System.getProperty("user.dir") + "/res/mapa";
     private final String AtaquePath = System.getProperty("user.dir") + "/res/fuego.png";
     private final String SoundMain = System.getProperty("user.dir") + "/res/main_inicio.wav";
     private final String SoundLoop = System.getProperty("user.dir") + "/res/main_loop.wav";
     
     private final Cliente cliente;
+    private final ColaEnvio envios;
     private final short mapaId;
     private final Image mapaImg;
     private final Image ataqueImg;
-    private short numSec = 0;
+    
+    // Capa estática con el fondo y la rejilla, pintada una sola vez.
+    // Se vuelve a pintar si cambia el tamaño, si se pierde su contenido o
+    // si la imagen del mapa todavía no se había terminado de cargar.
+    private VolatileImage fondo;
+    private boolean fondoCompleto;
     private final long inicio;
     
+    // Primera columna y fila de la parte del mapa que se ve. El mapa se
+    // muestra por pantallas de CeldasVista celdas de lado y se cambia de
+    // pantalla cuando el personaje principal sale de la actual.
+    private int origenX;
+    private int origenY;
+    
+    // Tiempo máximo para confirmar la última actualización al salir.
+    private static final long EsperaSalida = 1000;
+    
     private final Personaje principal;
     private final Map<Short, Personaje> personajes;
     
@@ -68,6 +94,8 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
         this.inicio = new Date().getTime();
         this.cliente = cliente;
         cliente.setUpdateListener(this);
+        this.envios = new ColaEnvio(cliente);
+        this.envios.setEntregaListener(this);
         this.mapaId = mapaId;
         this.mapaImg = this.loadImg(MapaPath + this.mapaId + ".png");
         this.ataqueImg = this.loadImg(AtaquePath);
@@ -75,8 +103,9 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
         this.principal  = principal;
         this.personajes = new HashMap<>();
         this.personajes.put(principal.getId(), principal);
+        this.colocaVista();
         
-        int size = CeldasPorFila * TamanioCelda;
+        int size = CeldasVista * TamanioCelda;
         this.setSize(size, size);
         this.setBackground(Color.red);
         addKeyListener(this);
@@ -93,55 +122,181 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
     
     @Override
     public void paintComponent(Graphics g) {
-        super.paintComponent(g);
-
+        // Pinta el fondo y la rejilla desde la capa estática
+        if (!this.pintaFondo(g)) {
+            super.paintComponent(g);
+            this.dibujaFondo(g);
+        }
+        
+        // Pinta a los personajes
+        for (Personaje p : this.personajes.values())
+            this.paintPersonaje(p, g);
+    }
+    
+    /**
+     * Copia la capa estática en pantalla, creándola o repintándola
+     * si es necesario.
+     * 
+     * @param g Gráficos del componente.
+     * @return Falso si no se puede usar la capa y hay que pintar el fondo
+     * directamente.
+     */
+    private boolean pintaFondo(Graphics g) {
+        GraphicsConfiguration gc = this.getGraphicsConfiguration();
+        int ancho = this.getWidth();
+        int alto  = this.getHeight();
+        if (gc == null || ancho <= 0 || alto <= 0)
+            return false;
+        
+        boolean perdido;
+        do {
+            // Si cambia el tamaño se crea otra, igual que si no es compatible.
+            int estado = VolatileImage.IMAGE_INCOMPATIBLE;
+            if (this.fondo != null && this.fondo.getWidth() == ancho
+                    && this.fondo.getHeight() == alto)
+                estado = this.fondo.validate(gc);
+            
+            if (estado == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (this.fondo != null)
+                    this.fondo.flush();
+                this.fondo = gc.createCompatibleVolatileImage(ancho, alto);
+                this.fondoCompleto = false;
+            } else if (estado == VolatileImage.IMAGE_RESTORED) {
+                // La superficie se ha recuperado, pero no lo que tenía.
+                this.fondoCompleto = false;
+            }
+            
+            if (!this.fondoCompleto) {
+                Graphics fg = this.fondo.createGraphics();
+                try {
+                    fg.setColor(this.getBackground());
+                    fg.fillRect(0, 0, ancho, alto);
+                    fg.setColor(this.getForeground());
+                    this.fondoCompleto = this.dibujaFondo(fg);
+                } finally {
+                    fg.dispose();
+                }
+            }
+            
+            g.drawImage(this.fondo, 0, 0, null);
+            
+            // Si se ha perdido mientras se copiaba, se vuelve a dibujar.
+            perdido = this.fondo.contentsLost();
+            if (perdido)
+                this.fondoCompleto = false;
+        } while (perdido);
+        
+        return true;
+    }
+    
+    /**
+     * Dibuja la imagen del mapa y la rejilla.
+     * 
+     * @param g Gráficos donde dibujar.
+     * @return Verdadero si la imagen del mapa estaba cargada del todo.
+     */
+    private boolean dibujaFondo(Graphics g) {
         // Pinta el fondo
+        boolean completo = true;
         if (this.mapaImg != null)
-            g.drawImage(this.mapaImg, 0, 0, this);
+            completo = g.drawImage(this.mapaImg, 0, 0, this);
         
         // DEBUG
         // Pinta la rejilla
-        for (int i = 0; i < CeldasPorFila; i++) {
+        for (int i = 0; i < CeldasVista; i++) {
             int coord = i * TamanioCelda;
             
             // Vertical
-            g.drawLine(coord, 0, coord, CeldasPorFila * TamanioCelda);
+            g.drawLine(coord, 0, coord, CeldasVista * TamanioCelda);
             
             // Horizontal
-            g.drawLine(0, coord, CeldasPorFila * TamanioCelda, coord);
+            g.drawLine(0, coord, CeldasVista * TamanioCelda, coord);
         }
         
-        // Pinta a los personajes
-        for (Personaje p : this.personajes.values())
-            this.paintPersonaje(p, g);
+        return completo;
     }
     
     private void paintPersonaje(Personaje p, Graphics g) {
         int pos = p.getPosicion();
-        int x = (pos % CeldasPorFila) * TamanioCelda;
-        int y = (pos / CeldasPorFila) * TamanioCelda;
+        int x = this.getX(pos);
+        int y = this.getY(pos);
         
         g.drawImage(p.getImage(), x, y, this);
         g.drawString("ID: " + Integer.toHexString(p.getId()), x + 2, y - 10);
         g.drawString(p.getVida() + "/" + p.getExp(), x, y + 2);
         
         if (p.getAtacando()) {
-            this.paintImage(this.ataqueImg, g, pos - 1 + CeldasPorFila);
-            this.paintImage(this.ataqueImg, g, pos + 1 + CeldasPorFila);
-            this.paintImage(this.ataqueImg, g, pos - 1 - CeldasPorFila);
-            this.paintImage(this.ataqueImg, g, pos + 1 - CeldasPorFila);
+            this.paintImage(this.ataqueImg, g, pos - 1 + Mapa.CeldasPorFila);
+            this.paintImage(this.ataqueImg, g, pos + 1 + Mapa.CeldasPorFila);
+            this.paintImage(this.ataqueImg, g, pos - 1 - Mapa.CeldasPorFila);
+            this.paintImage(this.ataqueImg, g, pos + 1 - Mapa.CeldasPorFila);
         }
     }
     
     private void paintImage(Image img, Graphics g, int pos) {
-        int x = (pos % CeldasPorFila) * TamanioCelda;
-        int y = (pos / CeldasPorFila) * TamanioCelda;
+        int x = this.getX(pos);
+        int y = this.getY(pos);
         
-        if ((x >= 0 && x <= (CeldasPorFila - 1) * TamanioCelda) &&
-            (y >= 0 && y <= (CeldasPorFila - 1) * TamanioCelda))
+        if ((x >= 0 && x <= (CeldasVista - 1) * TamanioCelda) &&
+            (y >= 0 && y <= (CeldasVista - 1) * TamanioCelda))
                 g.drawImage(img, x, y, this);
     }
     
+    /**
+     * Obtiene la coordenada horizontal en pantalla de una posición.
+     * 
+     * @param pos Posición en el mapa.
+     * @return Coordenada X, fuera del componente si no se ve.
+     */
+    private int getX(int pos) {
+        return (Mapa.columna(pos) - this.origenX) * TamanioCelda;
+    }
+    
+    /**
+     * Obtiene la coordenada vertical en pantalla de una posición.
+     * 
+     * @param pos Posición en el mapa.
+     * @return Coordenada Y, fuera del componente si no se ve.
+     */
+    private int getY(int pos) {
+        return (Mapa.fila(pos) - this.origenY) * TamanioCelda;
+    }
+    
+    /**
+     * Coloca la vista en la pantalla del mapa donde está el personaje
+     * principal.
+     * 
+     * @return Verdadero si ha cambiado de pantalla.
+     */
+    private boolean colocaVista() {
+        int pos = this.principal.getPosicion();
+        int x = Mapa.columna(pos) / CeldasVista * CeldasVista;
+        int y = Mapa.fila(pos) / CeldasVista * CeldasVista;
+        if (x == this.origenX && y == this.origenY)
+            return false;
+        
+        this.origenX = x;
+        this.origenY = y;
+        return true;
+    }
+    
+    /**
+     * Marca para repintar la zona del personaje principal tras moverse.
+     * Si ha salido de la pantalla, se repinta la nueva entera. El fondo
+     * es el mismo en todas, así que la capa estática sigue valiendo.
+     * 
+     * @param pos Posición anterior.
+     */
+    private void repintaMovimiento(int pos) {
+        if (this.colocaVista()) {
+            repaint();
+            return;
+        }
+        
+        repintaPersonaje(principal, pos);
+        repintaPersonaje(principal, principal.getPosicion());
+    }
+    
     @Override
     public void keyTyped(KeyEvent e) {
     }
@@ -157,44 +312,44 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
         switch (e.getKeyCode()) {
             case KeyEvent.VK_UP:
             case KeyEvent.VK_W:
-                if (pos / CeldasPorFila > 1) {
-                    principal.setPosicion((short)(pos - CeldasPorFila));
+                if (Mapa.fila(pos) > 1) {
+                    principal.setPosicion((short)(pos - Mapa.CeldasPorFila));
                     ataca();
                     ganaPuntos();
-                    repaint();
+                    repintaMovimiento(pos);
                     this.enviaActualizacion(this.principal);
                 }
                 break;
 
             case KeyEvent.VK_DOWN:
             case KeyEvent.VK_S:
-                if (pos / CeldasPorFila < 10 - 1) {
-                    principal.setPosicion((short)(pos + CeldasPorFila));
+                if (Mapa.fila(pos) < Mapa.CeldasPorFila - 1) {
+                    principal.setPosicion((short)(pos + Mapa.CeldasPorFila));
                     ataca();
                     ganaPuntos();
-                    repaint();
+                    repintaMovimiento(pos);
                     this.enviaActualizacion(this.principal);
                 }
                 break;
 
             case KeyEvent.VK_LEFT:
             case KeyEvent.VK_A:
-                if (pos % CeldasPorFila > 0) {
+                if (Mapa.columna(pos) > 0) {
                     principal.setPosicion((short)(pos - 1));
                     ataca();
                     ganaPuntos();
-                    repaint();
+                    repintaMovimiento(pos);
                     this.enviaActualizacion(this.principal);
                 }
                 break;
 
             case KeyEvent.VK_RIGHT:
             case KeyEvent.VK_D:
-                if (pos % CeldasPorFila < CeldasPorFila - 1) {
+                if (Mapa.columna(pos) < Mapa.CeldasPorFila - 1) {
                     principal.setPosicion((short)(pos + 1));
                     ataca();
                     ganaPuntos();
-                    repaint();
+                    repintaMovimiento(pos);
                     this.enviaActualizacion(this.principal);
                 }
                 break;
@@ -208,7 +363,7 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
                 timer.start();
                 principal.setAtacando(true);
                 ataca();
-                repaint();
+                repintaPersonaje(principal, pos);
                 break;
         }
     }
@@ -225,6 +380,7 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
             if (estaSiendoAtacado(p, principal)) {
                 p.setVida((byte)(p.getVida() - Personaje.getAtaque()));
                 enviaActualizacion(p);
+                repintaPersonaje(p, p.getPosicion());
                 
                 // Comprueba si nos lo hemos cargado
                 if (p.getVida() <= 0 || p.getVida() >= 13)
@@ -236,14 +392,43 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
             personajes.remove(borrar);
     }
     
+    /**
+     * Marca para repintar la zona de un personaje en una posición:
+     * su celda con las etiquetas y, si está atacando, el ataque alrededor.
+     * Swing junta todas las zonas marcadas en un único repintado.
+     * 
+     * @param p Personaje.
+     * @param pos Posición del personaje.
+     */
+    private void repintaPersonaje(Personaje p, int pos) {
+        int x = this.getX(pos);
+        int y = this.getY(pos);
+        repaint(new Rectangle(x, y - MargenEtiqueta, AnchoEtiqueta,
+                TamanioCelda + MargenEtiqueta));
+        
+        if (p.getAtacando())
+            repintaAtaque(pos);
+    }
+    
+    /**
+     * Marca para repintar las celdas del ataque alrededor de una posición.
+     * 
+     * @param pos Posición del atacante.
+     */
+    private void repintaAtaque(int pos) {
+        int x = this.getX(pos) - TamanioCelda;
+        int y = this.getY(pos) - TamanioCelda;
+        repaint(new Rectangle(x, y, 3 * TamanioCelda, 3 * TamanioCelda));
+    }
+    
     private boolean estaSiendoAtacado(Personaje atacante, Personaje atacado) {
         int posAtacante = atacante.getPosicion();
         int posAtacado  = atacado.getPosicion();
         
-        return (posAtacado == posAtacante - 1 + CeldasPorFila) ||
-               (posAtacado == posAtacante + 1 + CeldasPorFila) ||
-               (posAtacado == posAtacante - 1 - CeldasPorFila) ||
-               (posAtacado == posAtacante + 1 - CeldasPorFila);
+        return (posAtacado == posAtacante - 1 + Mapa.CeldasPorFila) ||
+               (posAtacado == posAtacante + 1 + Mapa.CeldasPorFila) ||
+               (posAtacado == posAtacante - 1 - Mapa.CeldasPorFila) ||
+               (posAtacado == posAtacante + 1 - Mapa.CeldasPorFila);
     }
     
     private void ganaPuntos() {
@@ -271,6 +456,9 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
         // Hacemos como si hubiesemos perdido
         principal.setVida((byte)0xFF);
         enviaActualizacion(principal);
+        
+        // Nos aseguramos de que llegue antes de cerrar el programa.
+        this.envios.vacia(EsperaSalida);
     }
 
     @Override
@@ -296,6 +484,11 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
 
     @Override
     public void mensajeRecibido(Mensaje mensaje) {
+        if (mensaje.getTipo() == TipoMensaje.SALIDA_VISTA) {
+            this.olvida((SalidaVista)mensaje);
+            return;
+        }
+        
         Actualizacion actual = (Actualizacion)mensaje;
         short id = actual.getUserId();
         
@@ -303,6 +496,7 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
         if (this.personajes.containsKey(id)) {
             // Actualizar personaje
             p = this.personajes.get(id);
+            repintaPersonaje(p, p.getPosicion());
             p.setExp(actual.getExperiencia());
             p.setVida(actual.getVida());
             p.setPosicion(actual.getPosicion());
@@ -335,24 +529,50 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
             }
         }
         
-        repaint();
+        repintaPersonaje(p, p.getPosicion());
+    }
+    
+    /**
+     * Olvida los personajes que se han alejado del principal.
+     * No han muerto, si vuelven a acercarse el servidor los enviará de nuevo.
+     * 
+     * @param salida Mensaje con los personajes que ya no se ven.
+     */
+    private void olvida(SalidaVista salida) {
+        for (int i = 0; i < salida.getNumUsuarios(); i++) {
+            short id = salida.getUsuario(i);
+            if (id == principal.getId())
+                continue;
+            
+            Personaje p = this.personajes.remove(id);
+            if (p != null)
+                repintaPersonaje(p, p.getPosicion());
+        }
     }
     
     private void enviaActualizacion(Personaje p) {
-        numSec++;
-        Actualizacion actual = new Actualizacion(
-                numSec,
-                p.getId(),
-                p.getTipo().getId(),
-                p.getExp(),
-                p.getSalud(),
-                p.getVida(),
-                p.getPosicion(),
+        // Se envía desde la hebra de red, aquí sólo se publica el estado.
+        this.envios.publica(
+                p,
                 (short)((new Date().getTime() - inicio) / 1000)
         );
-        this.cliente.envia(actual);
-        while (this.cliente.recibeBloqueante().getTipo() != TipoMensaje.CONFIRMACION)
-            ;
+    }
+
+    @Override
+    public void entregado(short userId) {
+    }
+
+    @Override
+    public void perdido(final short userId) {
+        // Si se ha perdido un estado, se vuelve a publicar el actual.
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                Personaje p = personajes.get(userId);
+                if (p != null)
+                    enviaActualizacion(p);
+            }
+        });
     }
     
     private final AbstractAction ataque = new AbstractAction() {
@@ -361,7 +581,7 @@ public class JMapa extends JPanel implements KeyListener, MouseListener,
         public void actionPerformed(ActionEvent ae) {
             principal.setAtacando(false);
             ((Timer)ae.getSource()).stop();
-            repaint();
+            repintaAtaque(principal.getPosicion());
         }
     };
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package cliente;
+
+import comun.Mensaje;
+import comun.TipoMensaje;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Respuesta pendiente a una petición enviada al servidor.
+ * Se relaciona con la petición por el número de secuencia y los tipos de
+ * mensaje que se aceptan como respuesta. La hebra que recibe la completa y
+ * la que hizo la petición espera sin sondear.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+class Respuesta implements Future<Mensaje> {
+    private final CountDownLatch hecho = new CountDownLatch(1);
+    private final TipoMensaje[] tipos;
+    
+    // Tabla de respuestas pendientes de la que se saca al terminar.
+    private final ConcurrentMap<Short, Respuesta> pendientes;
+    private final short numSec;
+    
+    private volatile Mensaje mensaje;
+    private volatile boolean cancelada;
+    
+    /**
+     * Crea una nueva respuesta pendiente.
+     * 
+     * @param pendientes Tabla de respuestas pendientes donde se registra.
+     * @param numSec Número de secuencia de la petición.
+     * @param tipos Tipos de mensaje aceptados como respuesta.
+     */
+    public Respuesta(final ConcurrentMap<Short, Respuesta> pendientes, final short numSec,
+            final TipoMensaje... tipos) {
+        this.pendientes = pendientes;
+        this.numSec = numSec;
+        this.tipos = tipos;
+    }
+    
+    /**
+     * Indica si un mensaje es del tipo esperado por la petición.
+     * 
+     * @param tipo Tipo del mensaje recibido.
+     * @return Verdadero si es una respuesta válida.
+     */
+    public boolean acepta(final TipoMensaje tipo) {
+        for (TipoMensaje t : this.tipos)
+            if (t == tipo)
+                return true;
+        
+        return false;
+    }
+    
+    /**
+     * Completa la respuesta y despierta a quien la esté esperando.
+     * 
+     * @param mensaje Mensaje de respuesta.
+     * @return Verdadero si se ha completado, falso si ya estaba terminada.
+     */
+    public boolean completa(final Mensaje mensaje) {
+        if (!this.pendientes.remove(this.numSec, this))
+            return false;
+        
+        this.mensaje = mensaje;
+        this.hecho.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        if (!this.pendientes.remove(this.numSec, this))
+            return false;
+        
+        this.cancelada = true;
+        this.hecho.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.cancelada;
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.hecho.getCount() == 0;
+    }
+
+    @Override
+    public Mensaje get() throws InterruptedException, ExecutionException {
+        this.hecho.await();
+        return this.resultado();
+    }
+
+    @Override
+    public Mensaje get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!this.hecho.await(timeout, unit))
+            throw new TimeoutException();
+        
+        return this.resultado();
+    }
+    
+    /**
+     * Obtiene el resultado una vez terminada.
+     * 
+     * @return Mensaje de respuesta.
+     */
+    private Mensaje resultado() {
+        if (this.cancelada)
+            throw new CancellationException();
+        
+        return this.mensaje;
+    }
+}
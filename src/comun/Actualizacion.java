@@ -23,6 +23,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Representa un mensaje de tipo ACTUALIZACION.
@@ -39,6 +40,15 @@ public class Actualizacion extends Mensaje {
     private short posicion;
     private short tiempo;
     
+    /**
+     * Crea una nueva instancia vacía del mensaje.
+     * Sirve para rellenarla después con los setters o al decodificar
+     * de un buffer, reutilizando la misma instancia para varios mensajes.
+     */
+    public Actualizacion() {
+        super(TipoMensaje.ACTUALIZACION, (short)0);
+    }
+    
     /**
      * Crea una nueva instancia del mensaje a partir de sus parámetros.
      * 
@@ -77,13 +87,7 @@ public class Actualizacion extends Mensaje {
         DataInputStream reader = new DataInputStream(inStream);
         try {
             this.userId = reader.readShort();
-            
-            short estado = reader.readShort();
-            this.clase       = (byte)((estado >> 0x0C) & 0x0F);
-            this.experiencia = (byte)((estado >> 0x08) & 0x0F);
-            this.salud       = (byte)((estado >> 0x04) & 0x0F);
-            this.vida        = (byte)((estado >> 0x00) & 0x0F);
-            
+            this.setEstado(reader.readShort());
             this.posicion = reader.readShort();
             this.tiempo   = reader.readShort();
         } catch (IOException ex) {
@@ -157,23 +161,94 @@ public class Actualizacion extends Mensaje {
         return tiempo;
     }
     
+    /**
+     * Establece todos los campos del mensaje.
+     * 
+     * @param numSec Número de secuencia.
+     * @param userId ID del usuario.
+     * @param clase Tipo / Clase del personaje.
+     * @param experiencia Nivel de experiencia del personaje.
+     * @param salud Nivel de salud del personaje.
+     * @param vida Nivel de vida del personaje.
+     * @param posicion Posición del personaje.
+     * @param tiempo Tiempo del servidor.
+     */
+    public void set(final short numSec, final short userId,
+            final byte clase, final byte experiencia, final byte salud,
+            final byte vida, final short posicion, final short tiempo) {
+        this.setNumSecuencia(numSec);
+        this.userId = userId;
+        this.clase  = clase;
+        this.experiencia = experiencia;
+        this.salud = salud;
+        this.vida  = vida;
+        this.posicion = posicion;
+        this.tiempo   = tiempo;
+    }
+    
+    /**
+     * Copia todos los campos de otro mensaje de actualización.
+     * 
+     * @param otro Mensaje del que copiar los campos.
+     */
+    public void copia(final Actualizacion otro) {
+        this.set(otro.getNumSecuencia(), otro.userId, otro.clase,
+                otro.experiencia, otro.salud, otro.vida, otro.posicion,
+                otro.tiempo);
+    }
+    
+    /**
+     * Empaqueta la clase, experiencia, salud y vida en un valor de 16 bits.
+     * 
+     * @return Estado del personaje.
+     */
+    short getEstado() {
+        int estado = 0;
+        estado |= (this.clase       & 0x0F) << 0x0C;
+        estado |= (this.experiencia & 0x0F) << 0x08;
+        estado |= (this.salud       & 0x0F) << 0x04;
+        estado |= (this.vida        & 0x0F) << 0x00;
+        return (short)estado;
+    }
+    
+    /**
+     * Desempaqueta la clase, experiencia, salud y vida de un valor de 16 bits.
+     * 
+     * @param estado Estado del personaje.
+     */
+    void setEstado(final short estado) {
+        this.clase       = (byte)((estado >> 0x0C) & 0x0F);
+        this.experiencia = (byte)((estado >> 0x08) & 0x0F);
+        this.salud       = (byte)((estado >> 0x04) & 0x0F);
+        this.vida        = (byte)((estado >> 0x00) & 0x0F);
+    }
+    
     @Override
     protected void writeData(final OutputStream outStream) {
         DataOutputStream writer = new DataOutputStream(outStream);
         try {
             writer.writeShort(this.userId);
-            
-            short estado = 0;
-            estado |= (this.clase       & 0x0F) << 0x0C;
-            estado |= (this.experiencia & 0x0F) << 0x08;
-            estado |= (this.salud       & 0x0F) << 0x04;
-            estado |= (this.vida        & 0x0F) << 0x00;
-            
-            writer.writeShort(estado);
+            writer.writeShort(this.getEstado());
             writer.writeShort(this.posicion);
             writer.writeShort(this.tiempo);
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
     }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.putShort(this.userId);
+        buffer.putShort(this.getEstado());
+        buffer.putShort(this.posicion);
+        buffer.putShort(this.tiempo);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        this.userId = buffer.getShort();
+        this.setEstado(buffer.getShort());
+        this.posicion = buffer.getShort();
+        this.tiempo   = buffer.getShort();
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Representa un mensaje de tipo ACTUALIZACION_DELTA.
+ * Es una actualización codificada respecto a otra anterior que el receptor
+ * ya ha confirmado (la base). Sólo lleva los campos que han cambiado y una
+ * máscara que los indica, junto con el número de secuencia de la base.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class ActualizacionDelta extends Mensaje {
+    // Bits de la máscara de campos cambiados.
+    private static final int CampoUsuario  = 0x1;
+    private static final int CampoEstado   = 0x2;
+    private static final int CampoPosicion = 0x4;
+    private static final int CampoTiempo   = 0x8;
+    
+    private int mascara;
+    private short base;
+    private short userId;
+    private short estado;
+    private short posicion;
+    private short tiempo;
+    
+    /**
+     * Crea una nueva instancia vacía del mensaje.
+     * Sirve para rellenarla después o al decodificar de un buffer,
+     * reutilizando la misma instancia para varios mensajes.
+     */
+    public ActualizacionDelta() {
+        super(TipoMensaje.ACTUALIZACION_DELTA, (short)0);
+    }
+    
+    /**
+     * Crea una nueva instancia del mensaje a partir de un flujo de entrada.
+     * 
+     * @param numSec Número de secuencia.
+     * @param inStream Flujo de entrada.
+     */
+    public ActualizacionDelta(final short numSec, final InputStream inStream) {
+        super(TipoMensaje.ACTUALIZACION_DELTA, numSec);
+        
+        DataInputStream reader = new DataInputStream(inStream);
+        try {
+            this.setCabecera(reader.readShort());
+            if ((this.mascara & CampoUsuario) != 0)
+                this.userId = reader.readShort();
+            if ((this.mascara & CampoEstado) != 0)
+                this.estado = reader.readShort();
+            if ((this.mascara & CampoPosicion) != 0)
+                this.posicion = reader.readShort();
+            if ((this.mascara & CampoTiempo) != 0)
+                this.tiempo = reader.readShort();
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Obtiene el número de secuencia de la actualización base.
+     * 
+     * @return Número de secuencia de la base.
+     */
+    public short getBase() {
+        return this.base;
+    }
+    
+    /**
+     * Codifica una actualización respecto a una base.
+     * 
+     * @param base Actualización base que el receptor ya tiene. Su número de
+     * secuencia identifica la base.
+     * @param actual Actualización a enviar. Su número de secuencia será el
+     * de este mensaje.
+     */
+    public void set(final Actualizacion base, final Actualizacion actual) {
+        this.setNumSecuencia(actual.getNumSecuencia());
+        this.base = (short)(base.getNumSecuencia() & Secuencia.Mascara);
+        this.userId   = actual.getUserId();
+        this.estado   = actual.getEstado();
+        this.posicion = actual.getPosicion();
+        this.tiempo   = actual.getTiempo();
+        
+        this.mascara = 0;
+        if (this.userId != base.getUserId())
+            this.mascara |= CampoUsuario;
+        if (this.estado != base.getEstado())
+            this.mascara |= CampoEstado;
+        if (this.posicion != base.getPosicion())
+            this.mascara |= CampoPosicion;
+        if (this.tiempo != base.getTiempo())
+            this.mascara |= CampoTiempo;
+    }
+    
+    /**
+     * Reconstruye la actualización completa a partir de la base.
+     * 
+     * @param base Actualización base.
+     * @param destino Instancia en la que escribir la actualización completa.
+     * Puede ser la misma que la base.
+     */
+    public void aplica(final Actualizacion base, final Actualizacion destino) {
+        short estadoBase = base.getEstado();
+        destino.set(
+                this.getNumSecuencia(),
+                ((this.mascara & CampoUsuario) != 0) ? this.userId : base.getUserId(),
+                base.getClase(),
+                base.getExperiencia(),
+                base.getSalud(),
+                base.getVida(),
+                ((this.mascara & CampoPosicion) != 0) ? this.posicion : base.getPosicion(),
+                ((this.mascara & CampoTiempo) != 0) ? this.tiempo : base.getTiempo()
+        );
+        destino.setEstado(((this.mascara & CampoEstado) != 0) ? this.estado : estadoBase);
+    }
+    
+    /**
+     * Separa la máscara y el número de secuencia de la base.
+     * 
+     * @param cabecera Valor con la máscara en los 4 bits superiores y la
+     * base en los 12 inferiores.
+     */
+    private void setCabecera(final short cabecera) {
+        this.mascara = (cabecera >> 12) & 0x0F;
+        this.base    = (short)(cabecera & Secuencia.Mascara);
+    }
+    
+    @Override
+    protected void writeData(final OutputStream outStream) {
+        DataOutputStream writer = new DataOutputStream(outStream);
+        try {
+            writer.writeShort((this.mascara << 12) | this.base);
+            if ((this.mascara & CampoUsuario) != 0)
+                writer.writeShort(this.userId);
+            if ((this.mascara & CampoEstado) != 0)
+                writer.writeShort(this.estado);
+            if ((this.mascara & CampoPosicion) != 0)
+                writer.writeShort(this.posicion);
+            if ((this.mascara & CampoTiempo) != 0)
+                writer.writeShort(this.tiempo);
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.putShort((short)((this.mascara << 12) | this.base));
+        if ((this.mascara & CampoUsuario) != 0)
+            buffer.putShort(this.userId);
+        if ((this.mascara & CampoEstado) != 0)
+            buffer.putShort(this.estado);
+        if ((this.mascara & CampoPosicion) != 0)
+            buffer.putShort(this.posicion);
+        if ((this.mascara & CampoTiempo) != 0)
+            buffer.putShort(this.tiempo);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        this.setCabecera(buffer.getShort());
+        if ((this.mascara & CampoUsuario) != 0)
+            this.userId = buffer.getShort();
+        if ((this.mascara & CampoEstado) != 0)
+            this.estado = buffer.getShort();
+        if ((this.mascara & CampoPosicion) != 0)
+            this.posicion = buffer.getShort();
+        if ((this.mascara & CampoTiempo) != 0)
+            this.tiempo = buffer.getShort();
+    }
+}
@@ -23,14 +23,28 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Representa el mensaje de tipo CONFIRMACION.
+ * Además del mensaje que confirma lleva el estado de la ventana de recepción:
+ * el número de secuencia acumulado y la máscara de confirmación selectiva.
  * 
  * @author Benito Palacios Sánchez
  */
 public class Confirmacion extends Mensaje {
     private short msgHash;
+    private short acumulado;
+    private int mascara;
+    
+    /**
+     * Crea una nueva instancia vacía del mensaje.
+     * Sirve para rellenarla después con los setters o al decodificar
+     * de un buffer, reutilizando la misma instancia para varios mensajes.
+     */
+    public Confirmacion() {
+        super(TipoMensaje.CONFIRMACION, (short)0);
+    }
     
     /**
      * Crea una nueva instancia del mensaje a partir de sus parámetros.
@@ -39,9 +53,24 @@ public class Confirmacion extends Mensaje {
      * @param msgHash Hash (CRC16) del mensaje de actualización.
      */
     public Confirmacion(final short numSec, final short msgHash) {
+        this(numSec, msgHash, numSec, 0);
+    }
+    
+    /**
+     * Crea una nueva instancia del mensaje a partir de sus parámetros.
+     * 
+     * @param numSec Número de secuencia.
+     * @param msgHash Hash (CRC16) del mensaje de actualización.
+     * @param acumulado Número de secuencia hasta el que se ha recibido todo.
+     * @param mascara Máscara de mensajes recibidos tras el acumulado.
+     */
+    public Confirmacion(final short numSec, final short msgHash,
+            final short acumulado, final int mascara) {
         super(TipoMensaje.CONFIRMACION, numSec);
         
-        this.msgHash = msgHash;
+        this.msgHash   = msgHash;
+        this.acumulado = acumulado;
+        this.mascara   = mascara;
     }
     
     /**
@@ -55,7 +84,9 @@ public class Confirmacion extends Mensaje {
         
         DataInputStream reader = new DataInputStream(inStream);
         try {
-            this.msgHash = reader.readShort();
+            this.msgHash   = reader.readShort();
+            this.acumulado = reader.readShort();
+            this.mascara   = reader.readInt();
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
@@ -70,13 +101,75 @@ public class Confirmacion extends Mensaje {
         return msgHash;
     }
     
+    /**
+     * Obtiene el número de secuencia acumulado.
+     * Se han recibido todos los mensajes hasta él incluido.
+     * 
+     * @return Número de secuencia acumulado.
+     */
+    public short getAcumulado() {
+        return acumulado;
+    }
+    
+    /**
+     * Obtiene la máscara de confirmación selectiva.
+     * El bit i indica que se ha recibido el mensaje acumulado + 1 + i.
+     * 
+     * @return Máscara de mensajes recibidos.
+     */
+    public int getMascara() {
+        return mascara;
+    }
+    
+    /**
+     * Establece todos los campos del mensaje.
+     * 
+     * @param numSec Número de secuencia.
+     * @param msgHash Hash (CRC16) del mensaje de actualización.
+     */
+    public void set(final short numSec, final short msgHash) {
+        this.set(numSec, msgHash, numSec, 0);
+    }
+    
+    /**
+     * Establece todos los campos del mensaje.
+     * 
+     * @param numSec Número de secuencia.
+     * @param msgHash Hash (CRC16) del mensaje de actualización.
+     * @param acumulado Número de secuencia hasta el que se ha recibido todo.
+     * @param mascara Máscara de mensajes recibidos tras el acumulado.
+     */
+    public void set(final short numSec, final short msgHash,
+            final short acumulado, final int mascara) {
+        this.setNumSecuencia(numSec);
+        this.msgHash   = msgHash;
+        this.acumulado = acumulado;
+        this.mascara   = mascara;
+    }
+    
     @Override
     protected void writeData(final OutputStream outStream) {
         DataOutputStream writer = new DataOutputStream(outStream);
         try {
             writer.writeShort(this.msgHash);
+            writer.writeShort(this.acumulado);
+            writer.writeInt(this.mascara);
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
     }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.putShort(this.msgHash);
+        buffer.putShort(this.acumulado);
+        buffer.putInt(this.mascara);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        this.msgHash   = buffer.getShort();
+        this.acumulado = buffer.getShort();
+        this.mascara   = buffer.getInt();
+    }
 }
@@ -17,6 +17,8 @@
 
 package comun;
 
+import java.nio.ByteBuffer;
+
 /**
  * Clase para realizar cálculos del código de comprobación CRC16.
  */
@@ -56,6 +58,23 @@ public class Crc16 {
             0x8201, 0x42C0, 0x4380, 0x8341, 0x4100, 0x81C1, 0x8081, 0x4040,
     };
     
+    // Tablas para procesar cuatro bytes a la vez (slicing-by-4). La fila k
+    // es el CRC de un byte seguido de k bytes a cero, la fila 0 es Table.
+    private static final int[][] Tables = new int[4][];
+    static {
+        Tables[0] = Table;
+        for (int k = 1; k < Tables.length; k++) {
+            Tables[k] = new int[256];
+            for (int i = 0; i < 256; i++) {
+                int anterior = Tables[k - 1][i];
+                Tables[k][i] = (anterior >>> 8) ^ Table[anterior & 0xff];
+            }
+        }
+    }
+    
+    /** Tamaño en bytes del CRC16 cuando se añade al final de un paquete. */
+    public static final int Size = 2;
+    
     /**
      * Calcula el CRC16 del vector de array dado.
      * 
@@ -63,10 +82,96 @@ public class Crc16 {
      * @return CRC16 de los datos.
      */
     public static short calculate(final byte[] data) {
-        int crc = 0x0000;
-        for (byte b : data)
-            crc = (crc >>> 8) ^ Table[(crc ^ b) & 0xff];
-        return (short)crc;
+        return (short)update(0, data, 0, data.length);
+    }
+    
+    /**
+     * Calcula el CRC16 de una parte de un vector de bytes.
+     * 
+     * @param data Datos para calcular el CRC16.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes.
+     * @return CRC16 de los datos.
+     */
+    public static short calculate(final byte[] data, final int offset,
+            final int length) {
+        return (short)update(0, data, offset, length);
+    }
+    
+    /**
+     * Calcula el CRC16 de los datos de un buffer entre su posición y su límite.
+     * No modifica la posición del buffer.
+     * 
+     * @param data Buffer con los datos para calcular el CRC16.
+     * @return CRC16 de los datos.
+     */
+    public static short calculate(final ByteBuffer data) {
+        return (short)update(0, data, data.position(), data.remaining());
+    }
+    
+    /**
+     * Calcula el CRC16 de una parte de un buffer.
+     * Las posiciones son absolutas y no se modifica la posición del buffer.
+     * 
+     * @param data Buffer con los datos para calcular el CRC16.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes.
+     * @return CRC16 de los datos.
+     */
+    public static short calculate(final ByteBuffer data, final int offset,
+            final int length) {
+        return (short)update(0, data, offset, length);
+    }
+    
+    /**
+     * Continúa el cálculo de un CRC16 con más datos.
+     * Empezando con 0, el resultado de procesar los datos por partes es el
+     * mismo que el de procesarlos de una vez.
+     * 
+     * @param crc CRC16 de los datos anteriores o 0 para empezar.
+     * @param data Datos para calcular el CRC16.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes.
+     * @return CRC16 de todos los datos, en los 16 bits inferiores.
+     */
+    public static int update(int crc, final byte[] data, int offset,
+            final int length) {
+        int fin = offset + length;
+        int[] t0 = Tables[0], t1 = Tables[1], t2 = Tables[2], t3 = Tables[3];
+        crc &= 0xffff;
+        
+        // Los dos primeros bytes de cada grupo se combinan con el CRC y los
+        // otros dos sólo pasan por las tablas.
+        for (; offset + 4 <= fin; offset += 4) {
+            crc = t3[(crc ^ data[offset]) & 0xff]
+                ^ t2[((crc >>> 8) ^ data[offset + 1]) & 0xff]
+                ^ t1[data[offset + 2] & 0xff]
+                ^ t0[data[offset + 3] & 0xff];
+        }
+        
+        for (; offset < fin; offset++)
+            crc = (crc >>> 8) ^ t0[(crc ^ data[offset]) & 0xff];
+        return crc;
+    }
+    
+    /**
+     * Continúa el cálculo de un CRC16 con más datos de un buffer.
+     * Las posiciones son absolutas y no se modifica la posición del buffer.
+     * 
+     * @param crc CRC16 de los datos anteriores o 0 para empezar.
+     * @param data Buffer con los datos para calcular el CRC16.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes.
+     * @return CRC16 de todos los datos, en los 16 bits inferiores.
+     */
+    public static int update(int crc, final ByteBuffer data, final int offset,
+            final int length) {
+        if (data.hasArray())
+            return update(crc, data.array(), data.arrayOffset() + offset, length);
+        
+        crc &= 0xffff;
+        for (int i = offset; i < offset + length; i++)
+            crc = (crc >>> 8) ^ Table[(crc ^ data.get(i)) & 0xff];
+        return crc;
     }
-
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodifica mensajes desde buffers reutilizando siempre las mismas
+ * instancias, de forma que no se reserva memoria por mensaje.
+ * 
+ * El mensaje devuelto sólo es válido hasta la siguiente llamada, así que si
+ * se quiere guardar hay que copiarlo. Cada hebra debe usar su propia instancia.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class Decodificador {
+    private final RegistroSolicitud registroSolicitud = new RegistroSolicitud();
+    private final RegistroCorrecto registroCorrecto = new RegistroCorrecto();
+    private final RegistroIncorrecto registroIncorrecto = new RegistroIncorrecto();
+    private final Actualizacion actualizacion = new Actualizacion();
+    private final Confirmacion confirmacion = new Confirmacion();
+    private final Lote lote = new Lote();
+    private final ActualizacionDelta actualizacionDelta = new ActualizacionDelta();
+    private final SalidaVista salidaVista = new SalidaVista();
+    private final RetoRegistro retoRegistro = new RetoRegistro();
+    
+    /**
+     * Decodifica el mensaje que empieza en la posición actual del buffer.
+     * 
+     * @param buffer Buffer con los datos del mensaje.
+     * @return Instancia reutilizada del mensaje con los datos leídos.
+     * @throws MessageFormatException Si el mensaje no es válido.
+     */
+    public Mensaje decodifica(final ByteBuffer buffer)
+            throws MessageFormatException {
+        Mensaje msg;
+        TipoMensaje tipo = Mensaje.PeekTipo(buffer);
+        switch (tipo) {
+            case REGISTRO_SOLICITUD:
+                msg = this.registroSolicitud;
+                break;
+                
+            case REGISTRO_CORRECTO:
+                msg = this.registroCorrecto;
+                break;
+                
+            case REGISTRO_INCORRECTO:
+                msg = this.registroIncorrecto;
+                break;
+                
+            case ACTUALIZACION:
+                msg = this.actualizacion;
+                break;
+                
+            case CONFIRMACION:
+                msg = this.confirmacion;
+                break;
+                
+            case LOTE:
+                msg = this.lote;
+                break;
+                
+            case ACTUALIZACION_DELTA:
+                msg = this.actualizacionDelta;
+                break;
+                
+            case SALIDA_VISTA:
+                msg = this.salidaVista;
+                break;
+                
+            case RETO_REGISTRO:
+                msg = this.retoRegistro;
+                break;
+                
+            default:
+                throw new MessageFormatException(tipo, "");
+        }
+        
+        msg.read(buffer);
+        return msg;
+    }
+}
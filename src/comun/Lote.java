@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Representa un mensaje de tipo LOTE.
+ * Agrupa varias actualizaciones en un solo datagrama para no pagar la
+ * cabecera UDP/IP por cada una. Tras la cabecera va el número de registros
+ * y cada registro es el cuerpo de una actualización sin su cabecera.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class Lote extends Mensaje {
+    /** Tamaño de la cabecera del lote: cabecera de mensaje y número. */
+    public static final int TamCabecera = 3;
+    
+    /** Tamaño de cada actualización dentro del lote. */
+    public static final int TamRegistro = 8;
+    
+    /** Tamaño máximo del lote, por debajo de la MTU habitual. */
+    public static final int TamMaximo = 1200;
+    
+    /** Número máximo de actualizaciones en un lote. */
+    public static final int MaxRegistros = (TamMaximo - TamCabecera) / TamRegistro;
+    
+    // Cuerpos de las actualizaciones tal cual se leen o escriben.
+    private final ByteBuffer registros = ByteBuffer.allocate(MaxRegistros * TamRegistro);
+    private int numRegistros;
+    
+    /**
+     * Crea una nueva instancia vacía del mensaje.
+     * Sirve para rellenarla después o al decodificar de un buffer,
+     * reutilizando la misma instancia para varios mensajes.
+     */
+    public Lote() {
+        super(TipoMensaje.LOTE, (short)0);
+    }
+    
+    /**
+     * Crea una nueva instancia del mensaje a partir de un flujo de entrada.
+     * 
+     * @param numSec Número de secuencia.
+     * @param inStream Flujo de entrada.
+     */
+    public Lote(final short numSec, final InputStream inStream) {
+        super(TipoMensaje.LOTE, numSec);
+        
+        DataInputStream reader = new DataInputStream(inStream);
+        try {
+            this.numRegistros = Math.min(reader.readUnsignedByte(), MaxRegistros);
+            reader.readFully(this.registros.array(), 0,
+                    this.numRegistros * TamRegistro);
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Obtiene el número de actualizaciones del lote.
+     * 
+     * @return Número de actualizaciones.
+     */
+    public int getNumRegistros() {
+        return this.numRegistros;
+    }
+    
+    /**
+     * Vacía el lote.
+     */
+    public void limpia() {
+        this.numRegistros = 0;
+    }
+    
+    /**
+     * Añade una actualización al lote.
+     * 
+     * @param actual Actualización a añadir.
+     * @return Falso si el lote estaba lleno.
+     */
+    public boolean anade(final Actualizacion actual) {
+        if (this.numRegistros >= MaxRegistros)
+            return false;
+        
+        this.registros.position(this.numRegistros * TamRegistro);
+        actual.writeData(this.registros);
+        this.numRegistros++;
+        return true;
+    }
+    
+    /**
+     * Obtiene una actualización del lote.
+     * 
+     * @param indice Índice de la actualización.
+     * @param destino Instancia en la que leerla, se puede reutilizar.
+     */
+    public void getActualizacion(final int indice, final Actualizacion destino) {
+        if (indice < 0 || indice >= this.numRegistros)
+            throw new IndexOutOfBoundsException("Invalid record index");
+        
+        this.registros.position(indice * TamRegistro);
+        destino.setNumSecuencia(this.getNumSecuencia());
+        destino.readData(this.registros);
+    }
+    
+    /**
+     * Empieza un lote directamente sobre un buffer de salida.
+     * Permite ir añadiendo actualizaciones ya codificadas sin decodificarlas.
+     * 
+     * @param buffer Buffer vacío, con la posición en 0 y al menos
+     * TamMaximo bytes.
+     * @param numSec Número de secuencia del lote.
+     */
+    public static void Inicia(final ByteBuffer buffer, final short numSec) {
+        buffer.putShort((short)((TipoMensaje.LOTE.getId() << 12) |
+                (numSec & 0x0FFF)));
+        buffer.put((byte)0);
+    }
+    
+    /**
+     * Añade una actualización ya codificada a un lote empezado con Inicia.
+     * 
+     * @param buffer Buffer del lote.
+     * @param actual Actualización codificada entre su posición y su límite.
+     * No se modifica.
+     * @return Falso si no cabe y hay que enviar el lote antes.
+     */
+    public static boolean Anade(final ByteBuffer buffer, final ByteBuffer actual) {
+        int numero = buffer.get(TamCabecera - 1) & 0xFF;
+        if (numero >= MaxRegistros || buffer.remaining() < TamRegistro)
+            return false;
+        
+        // Se copia el cuerpo, sin la cabecera de la actualización.
+        int pos = actual.position() + 2;
+        for (int i = 0; i < TamRegistro; i++)
+            buffer.put(actual.get(pos + i));
+        
+        buffer.put(TamCabecera - 1, (byte)(numero + 1));
+        return true;
+    }
+    
+    @Override
+    protected void writeData(final OutputStream outStream) {
+        DataOutputStream writer = new DataOutputStream(outStream);
+        try {
+            writer.writeByte(this.numRegistros);
+            writer.write(this.registros.array(), 0,
+                    this.numRegistros * TamRegistro);
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.put((byte)this.numRegistros);
+        buffer.put(this.registros.array(), 0, this.numRegistros * TamRegistro);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        int numero = buffer.get() & 0xFF;
+        if (numero > MaxRegistros || buffer.remaining() < numero * TamRegistro)
+            throw new BufferUnderflowException();
+        
+        buffer.get(this.registros.array(), 0, numero * TamRegistro);
+        this.numRegistros = numero;
+    }
+}
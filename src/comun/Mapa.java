@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+/**
+ * Geometría de los mapas del juego.
+ * Las posiciones son el índice de la celda recorriendo el mapa por filas,
+ * igual que se envían en las actualizaciones.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public final class Mapa {
+    /** Número de celdas de cada fila y de cada columna del mapa. */
+    public static final int CeldasPorFila = 60;
+    
+    /** Número total de celdas del mapa. */
+    public static final int NumCeldas = CeldasPorFila * CeldasPorFila;
+    
+    private Mapa() {
+    }
+    
+    /**
+     * Obtiene la columna de una posición.
+     * 
+     * @param pos Posición en el mapa.
+     * @return Columna de la celda.
+     */
+    public static int columna(final int pos) {
+        return pos % CeldasPorFila;
+    }
+    
+    /**
+     * Obtiene la fila de una posición.
+     * 
+     * @param pos Posición en el mapa.
+     * @return Fila de la celda.
+     */
+    public static int fila(final int pos) {
+        return pos / CeldasPorFila;
+    }
+    
+    /**
+     * Comprueba si una posición está dentro del mapa.
+     * 
+     * @param pos Posición a comprobar.
+     * @return Verdadero si es una celda del mapa.
+     */
+    public static boolean esValida(final int pos) {
+        return pos >= 0 && pos < NumCeldas;
+    }
+    
+    /**
+     * Calcula la distancia entre dos posiciones en celdas.
+     * Es el mayor de los desplazamientos en horizontal y en vertical, de
+     * forma que las celdas a una distancia dada forman un cuadrado.
+     * 
+     * @param pos1 Primera posición.
+     * @param pos2 Segunda posición.
+     * @return Distancia entre ambas.
+     */
+    public static int distancia(final int pos1, final int pos2) {
+        int dx = Math.abs(columna(pos1) - columna(pos2));
+        int dy = Math.abs(fila(pos1) - fila(pos2));
+        return Math.max(dx, dy);
+    }
+}
@@ -23,6 +23,8 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Mensaje para envío y recepción.
@@ -33,7 +35,7 @@ import java.io.OutputStream;
  */
 public abstract class Mensaje {
     private final TipoMensaje tipo;
-    private final short numSec;
+    private short numSec;
     
     /**
      * Crea una nueva instancia de mensaje.
@@ -48,11 +50,12 @@ public abstract class Mensaje {
     
     /**
      * Tamaño máximo entre los mensajes implementados.
+     * El mayor es el lote de actualizaciones.
      * 
      * @return Tamaño en bytes.
      */
     public static int GetMaxMsgSize() {
-        return 0x0A;
+        return Lote.TamMaximo;
     }
     
     /**
@@ -77,7 +80,7 @@ public abstract class Mensaje {
         try {
             // Lee la cabecera
             short header = reader.readShort();
-            TipoMensaje tipo = TipoMensaje.fromId(header >> 12);
+            TipoMensaje tipo = TipoMensaje.fromId((header >> 12) & 0x0F);
             short numSec = (short)(header & 0x0FFF);
 
             // Crea la instancia correspondiente del mensaje
@@ -102,6 +105,22 @@ public abstract class Mensaje {
                     msg = new Confirmacion(numSec, inStream);
                     break;
                     
+                case LOTE:
+                    msg = new Lote(numSec, inStream);
+                    break;
+                    
+                case ACTUALIZACION_DELTA:
+                    msg = new ActualizacionDelta(numSec, inStream);
+                    break;
+                    
+                case SALIDA_VISTA:
+                    msg = new SalidaVista(numSec, inStream);
+                    break;
+                    
+                case RETO_REGISTRO:
+                    msg = new RetoRegistro(numSec, inStream);
+                    break;
+                    
                 default:
                     throw new MessageFormatException(tipo, "");
             }
@@ -113,6 +132,80 @@ public abstract class Mensaje {
         return msg;
     }
     
+    /**
+     * Obtiene el tipo del mensaje que empieza en la posición actual del
+     * buffer sin avanzar dicha posición.
+     * 
+     * @param buffer Buffer con los datos del mensaje.
+     * @return Tipo del mensaje o DESCONOCIDO si no hay datos suficientes.
+     */
+    public static TipoMensaje PeekTipo(final ByteBuffer buffer) {
+        if (buffer.remaining() < 2)
+            return TipoMensaje.DESCONOCIDO;
+        
+        return TipoMensaje.fromId((buffer.getShort(buffer.position()) >> 12) & 0x0F);
+    }
+    
+    /**
+     * Crea un nuevo mensaje del tipo correspondiente a partir de un buffer.
+     * Se lee desde la posición actual del buffer hasta el final del mensaje.
+     * 
+     * Para no crear instancias nuevas por cada mensaje se puede usar
+     * la clase Decodificador.
+     * 
+     * @param buffer Buffer con los datos del mensaje.
+     * @return Mensaje que representa esos datos.
+     * @throws MessageFormatException 
+     */
+    public static Mensaje FromBuffer(final ByteBuffer buffer)
+            throws MessageFormatException {
+        Mensaje msg;
+        TipoMensaje tipo = PeekTipo(buffer);
+        switch (tipo) {
+            case REGISTRO_SOLICITUD:
+                msg = new RegistroSolicitud();
+                break;
+
+            case REGISTRO_CORRECTO:
+                msg = new RegistroCorrecto();
+                break;
+
+            case REGISTRO_INCORRECTO:
+                msg = new RegistroIncorrecto();
+                break;
+
+            case ACTUALIZACION:
+                msg = new Actualizacion();
+                break;
+
+            case CONFIRMACION:
+                msg = new Confirmacion();
+                break;
+
+            case LOTE:
+                msg = new Lote();
+                break;
+
+            case ACTUALIZACION_DELTA:
+                msg = new ActualizacionDelta();
+                break;
+
+            case SALIDA_VISTA:
+                msg = new SalidaVista();
+                break;
+
+            case RETO_REGISTRO:
+                msg = new RetoRegistro();
+                break;
+
+            default:
+                throw new MessageFormatException(tipo, "");
+        }
+        
+        msg.read(buffer);
+        return msg;
+    }
+    
     /**
      * Obtiene el tipo del mensaje.
      * 
@@ -131,6 +224,42 @@ public abstract class Mensaje {
         return this.numSec;
     }
     
+    /**
+     * Establece el número de secuencia del mensaje.
+     * Sólo se usan los 12 bits inferiores.
+     * 
+     * @param numSec Número de secuencia del mensaje.
+     */
+    public void setNumSecuencia(final short numSec) {
+        this.numSec = (short)(numSec & 0x0FFF);
+    }
+    
+    /**
+     * Rellena este mensaje con los datos de un buffer.
+     * Se lee desde la posición actual del buffer, que avanza hasta el final
+     * del mensaje. Permite reutilizar la misma instancia para varios mensajes.
+     * 
+     * @param buffer Buffer con los datos del mensaje.
+     * @throws MessageFormatException Si el mensaje es de otro tipo o está
+     * incompleto.
+     */
+    public void read(final ByteBuffer buffer) throws MessageFormatException {
+        try {
+            // Lee la cabecera
+            short header = buffer.getShort();
+            TipoMensaje leido = TipoMensaje.fromId((header >> 12) & 0x0F);
+            if (leido != this.tipo)
+                throw new MessageFormatException(leido, "Unexpected type");
+            
+            this.numSec = (short)(header & 0x0FFF);
+            
+            // Lee el cuerpo del mensaje
+            this.readData(buffer);
+        } catch (BufferUnderflowException ex) {
+            throw new MessageFormatException("Truncated message", ex);
+        }
+    }
+    
     /**
      * Escribe el mensaje en un vector de bytes.
      * 
@@ -163,6 +292,21 @@ public abstract class Mensaje {
         }
     }
     
+    /**
+     * Escribe el mensaje en un buffer.
+     * Se escribe desde la posición actual del buffer, que avanza hasta
+     * el final del mensaje. No se reserva memoria.
+     * 
+     * @param buffer Buffer de salida con espacio suficiente para el mensaje.
+     */
+    public void write(final ByteBuffer buffer) {
+        // Escribe la cabecera
+        buffer.putShort((short)((this.tipo.getId() << 12) | (this.numSec & 0x0FFF)));
+        
+        // Escribe el cuerpo del mensaje
+        this.writeData(buffer);
+    }
+    
     /**
      * Método sobreescrito en el que se escriben los datos del mensaje
      * específicos a cada tipo de mensaje.
@@ -170,4 +314,20 @@ public abstract class Mensaje {
      * @param outStream Flujo de datos de salida.
      */
     protected abstract void writeData(final OutputStream outStream);
+    
+    /**
+     * Método sobreescrito en el que se escriben en un buffer los datos
+     * del mensaje específicos a cada tipo de mensaje.
+     * 
+     * @param buffer Buffer de salida.
+     */
+    protected abstract void writeData(final ByteBuffer buffer);
+    
+    /**
+     * Método sobreescrito en el que se leen de un buffer los datos
+     * del mensaje específicos a cada tipo de mensaje.
+     * 
+     * @param buffer Buffer de entrada.
+     */
+    protected abstract void readData(final ByteBuffer buffer);
 }
\ No newline at end of file
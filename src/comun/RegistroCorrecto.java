@@ -23,15 +23,29 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Representa un mensaje de tipo REGISTRO_CORRECTO.
+ * Si el servidor envía las actualizaciones del mapa por multicast, lleva
+ * la dirección IPv4 y el puerto del grupo al que se debe unir el cliente.
  * 
  * @author Benito Palacios Sánchez
  */
 public class RegistroCorrecto extends Mensaje {
     private short mapaId;
     private byte numPersonajes;
+    private int grupo;
+    private short puertoGrupo;
+    
+    /**
+     * Crea una nueva instancia vacía.
+     * Sirve para rellenarla después con los setters o al decodificar
+     * de un buffer, reutilizando la misma instancia para varios mensajes.
+     */
+    public RegistroCorrecto() {
+        super(TipoMensaje.REGISTRO_CORRECTO, (short)0);
+    }
     
     /**
      * Crea una nueva instancia.
@@ -62,6 +76,8 @@ public class RegistroCorrecto extends Mensaje {
             DataInputStream reader = new DataInputStream(inStream);
             this.mapaId = reader.readShort();
             this.numPersonajes = reader.readByte();
+            this.grupo = reader.readInt();
+            this.puertoGrupo = reader.readShort();
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
@@ -84,6 +100,43 @@ public class RegistroCorrecto extends Mensaje {
     public byte getNumPersonajes() {
         return numPersonajes;
     }
+    
+    /**
+     * Obtiene la dirección IPv4 del grupo multicast del mapa.
+     * 
+     * @return Dirección del grupo o 0 si las actualizaciones llegan
+     * por unicast.
+     */
+    public int getGrupo() {
+        return this.grupo;
+    }
+    
+    /**
+     * Obtiene el puerto del grupo multicast del mapa.
+     * 
+     * @return Puerto del grupo.
+     */
+    public int getPuertoGrupo() {
+        return this.puertoGrupo & 0xFFFF;
+    }
+    
+    /**
+     * Establece todos los campos del mensaje.
+     * 
+     * @param numSec Número de secuencia.
+     * @param mapaId ID del mapa.
+     * @param numPersonajes Número de personajes en el mapa.
+     * @param grupo Dirección IPv4 del grupo multicast del mapa o 0.
+     * @param puertoGrupo Puerto del grupo multicast.
+     */
+    public void set(final short numSec, final short mapaId,
+            final byte numPersonajes, final int grupo, final int puertoGrupo) {
+        this.setNumSecuencia(numSec);
+        this.mapaId = mapaId;
+        this.numPersonajes = numPersonajes;
+        this.grupo = grupo;
+        this.puertoGrupo = (short)puertoGrupo;
+    }
         
     @Override
     protected void writeData(final OutputStream outStream) {
@@ -92,9 +145,26 @@ public class RegistroCorrecto extends Mensaje {
         try {
             writer.writeShort(this.mapaId);
             writer.writeByte(this.numPersonajes);
+            writer.writeInt(this.grupo);
+            writer.writeShort(this.puertoGrupo);
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
     }
     
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.putShort(this.mapaId);
+        buffer.put(this.numPersonajes);
+        buffer.putInt(this.grupo);
+        buffer.putShort(this.puertoGrupo);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        this.mapaId = buffer.getShort();
+        this.numPersonajes = buffer.get();
+        this.grupo = buffer.getInt();
+        this.puertoGrupo = buffer.getShort();
+    }
 }
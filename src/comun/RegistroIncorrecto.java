@@ -20,6 +20,7 @@ package comun;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Representa un mensaje de REGISTRO_INCORRECTO.
@@ -28,6 +29,15 @@ import java.io.OutputStream;
  */
 public class RegistroIncorrecto extends Mensaje {
 
+    /**
+     * Crea una nueva instancia vacía.
+     * Sirve para decodificar de un buffer, reutilizando la misma instancia
+     * para varios mensajes.
+     */
+    public RegistroIncorrecto() {
+        super(TipoMensaje.REGISTRO_INCORRECTO, (short)0);
+    }
+    
     /**
      * Crea una nueva instancia a partir de sus parámetros.
      * 
@@ -54,4 +64,11 @@ public class RegistroIncorrecto extends Mensaje {
     protected void writeData(final OutputStream outStream) {
     }
     
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+    }
 }
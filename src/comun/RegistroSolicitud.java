@@ -23,15 +23,27 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Representa un mensaje de tipo REGISTRO_SOLICITUD.
+ * Lleva la cookie del último RETO_REGISTRO recibido o 0 en el primer intento.
  * 
  * @author Benito Palacios Sánchez
  */
 public class RegistroSolicitud extends Mensaje {
     private short usuarioId;
     private short usuarioPasswd;
+    private int cookie;
+    
+    /**
+     * Crea una nueva instancia vacía del mensaje.
+     * Sirve para rellenarla después con los setters o al decodificar
+     * de un buffer, reutilizando la misma instancia para varios mensajes.
+     */
+    public RegistroSolicitud() {
+        super(TipoMensaje.REGISTRO_SOLICITUD, (short)0);
+    }
     
     /**
      * Crea una nueva instancia del mensaje a partir de sus parámetros.
@@ -61,6 +73,7 @@ public class RegistroSolicitud extends Mensaje {
         try {
             this.usuarioId     = reader.readShort();
             this.usuarioPasswd = reader.readShort();
+            this.cookie        = reader.readInt();
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
@@ -84,6 +97,38 @@ public class RegistroSolicitud extends Mensaje {
         return this.usuarioPasswd;
     }
     
+    /**
+     * Obtiene la cookie del reto del servidor.
+     * 
+     * @return Cookie o 0 si todavía no se ha recibido ningún reto.
+     */
+    public int getCookie() {
+        return this.cookie;
+    }
+    
+    /**
+     * Establece la cookie del reto del servidor.
+     * 
+     * @param cookie Cookie recibida en el RETO_REGISTRO.
+     */
+    public void setCookie(final int cookie) {
+        this.cookie = cookie;
+    }
+    
+    /**
+     * Establece todos los campos del mensaje.
+     * 
+     * @param numSec Número de secuencia.
+     * @param usuarioId ID del usuario.
+     * @param usuarioPasswd Hash (CRC16) de la contraseña.
+     */
+    public void set(final short numSec, final short usuarioId,
+            final short usuarioPasswd) {
+        this.setNumSecuencia(numSec);
+        this.usuarioId     = usuarioId;
+        this.usuarioPasswd = usuarioPasswd;
+    }
+    
     @Override
     protected void writeData(OutputStream outStream) {
         DataOutputStream writer = new DataOutputStream(outStream);
@@ -91,8 +136,23 @@ public class RegistroSolicitud extends Mensaje {
         try {
             writer.writeShort(this.usuarioId);
             writer.writeShort(this.usuarioPasswd);
+            writer.writeInt(this.cookie);
         } catch (IOException ex) {
             System.out.println("ERROR " + ex.getMessage());
         }
     }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.putShort(this.usuarioId);
+        buffer.putShort(this.usuarioPasswd);
+        buffer.putInt(this.cookie);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        this.usuarioId     = buffer.getShort();
+        this.usuarioPasswd = buffer.getShort();
+        this.cookie        = buffer.getInt();
+    }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Representa un mensaje de tipo RETO_REGISTRO.
+ * Es la respuesta del servidor a una solicitud de registro sin cookie o con
+ * una cookie caducada. El cliente debe repetir la solicitud con la cookie
+ * recibida, lo que demuestra que recibe los paquetes en su dirección.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class RetoRegistro extends Mensaje {
+    private int cookie;
+    
+    /**
+     * Crea una nueva instancia vacía.
+     * Sirve para rellenarla después con los setters o al decodificar
+     * de un buffer, reutilizando la misma instancia para varios mensajes.
+     */
+    public RetoRegistro() {
+        super(TipoMensaje.RETO_REGISTRO, (short)0);
+    }
+    
+    /**
+     * Crea una nueva instancia.
+     * 
+     * @param numSec Número de secuencia de la solicitud.
+     * @param cookie Cookie que se debe repetir en la solicitud.
+     */
+    public RetoRegistro(final short numSec, final int cookie) {
+        super(TipoMensaje.RETO_REGISTRO, numSec);
+        this.cookie = cookie;
+    }
+    
+    /**
+     * Crea una nueva instancia.
+     * 
+     * @param numSec Número de secuencia.
+     * @param inStream Flujo de datos de entrada.
+     */
+    public RetoRegistro(final short numSec, final InputStream inStream) {
+        super(TipoMensaje.RETO_REGISTRO, numSec);
+        
+        try {
+            DataInputStream reader = new DataInputStream(inStream);
+            this.cookie = reader.readInt();
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Obtiene la cookie.
+     * 
+     * @return Cookie que se debe repetir en la solicitud.
+     */
+    public int getCookie() {
+        return this.cookie;
+    }
+    
+    /**
+     * Establece todos los campos del mensaje.
+     * 
+     * @param numSec Número de secuencia de la solicitud.
+     * @param cookie Cookie que se debe repetir en la solicitud.
+     */
+    public void set(final short numSec, final int cookie) {
+        this.setNumSecuencia(numSec);
+        this.cookie = cookie;
+    }
+    
+    @Override
+    protected void writeData(final OutputStream outStream) {
+        DataOutputStream writer = new DataOutputStream(outStream);
+        
+        try {
+            writer.writeInt(this.cookie);
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.putInt(this.cookie);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        this.cookie = buffer.getInt();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Representa un mensaje de tipo SALIDA_VISTA.
+ * Indica al cliente los personajes que han dejado de estar a la vista de su
+ * jugador, para que los olvide sin darlos por muertos. Tras la cabecera va
+ * el número de personajes y el ID de cada uno.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class SalidaVista extends Mensaje {
+    /** Número máximo de personajes en un mensaje. */
+    public static final int MaxUsuarios = 0xFF;
+    
+    private final short[] usuarios = new short[MaxUsuarios];
+    private int numUsuarios;
+    
+    /**
+     * Crea una nueva instancia vacía del mensaje.
+     * Sirve para rellenarla después o al decodificar de un buffer,
+     * reutilizando la misma instancia para varios mensajes.
+     */
+    public SalidaVista() {
+        super(TipoMensaje.SALIDA_VISTA, (short)0);
+    }
+    
+    /**
+     * Crea una nueva instancia del mensaje a partir de un flujo de entrada.
+     * 
+     * @param numSec Número de secuencia.
+     * @param inStream Flujo de entrada.
+     */
+    public SalidaVista(final short numSec, final InputStream inStream) {
+        super(TipoMensaje.SALIDA_VISTA, numSec);
+        
+        DataInputStream reader = new DataInputStream(inStream);
+        try {
+            int numero = reader.readUnsignedByte();
+            for (int i = 0; i < numero; i++)
+                this.usuarios[i] = reader.readShort();
+            this.numUsuarios = numero;
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Obtiene el número de personajes del mensaje.
+     * 
+     * @return Número de personajes.
+     */
+    public int getNumUsuarios() {
+        return this.numUsuarios;
+    }
+    
+    /**
+     * Obtiene el ID de uno de los personajes.
+     * 
+     * @param indice Índice del personaje.
+     * @return ID del personaje.
+     */
+    public short getUsuario(final int indice) {
+        if (indice < 0 || indice >= this.numUsuarios)
+            throw new IndexOutOfBoundsException("Invalid user index");
+        
+        return this.usuarios[indice];
+    }
+    
+    /**
+     * Vacía el mensaje.
+     */
+    public void limpia() {
+        this.numUsuarios = 0;
+    }
+    
+    /**
+     * Añade un personaje al mensaje.
+     * 
+     * @param userId ID del personaje.
+     * @return Falso si el mensaje estaba lleno.
+     */
+    public boolean anade(final short userId) {
+        if (this.numUsuarios >= MaxUsuarios)
+            return false;
+        
+        this.usuarios[this.numUsuarios++] = userId;
+        return true;
+    }
+    
+    @Override
+    protected void writeData(final OutputStream outStream) {
+        DataOutputStream writer = new DataOutputStream(outStream);
+        try {
+            writer.writeByte(this.numUsuarios);
+            for (int i = 0; i < this.numUsuarios; i++)
+                writer.writeShort(this.usuarios[i]);
+        } catch (IOException ex) {
+            System.out.println("ERROR " + ex.getMessage());
+        }
+    }
+    
+    @Override
+    protected void writeData(final ByteBuffer buffer) {
+        buffer.put((byte)this.numUsuarios);
+        for (int i = 0; i < this.numUsuarios; i++)
+            buffer.putShort(this.usuarios[i]);
+    }
+    
+    @Override
+    protected void readData(final ByteBuffer buffer) {
+        int numero = buffer.get() & 0xFF;
+        if (buffer.remaining() < numero * 2)
+            throw new BufferUnderflowException();
+        
+        for (int i = 0; i < numero; i++)
+            this.usuarios[i] = buffer.getShort();
+        this.numUsuarios = numero;
+    }
+}
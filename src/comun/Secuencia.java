@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+/**
+ * Operaciones con los números de secuencia de 12 bits de la cabecera.
+ * Como el número da la vuelta al llegar a 0xFFF, las comparaciones se hacen
+ * con aritmética de números de serie: un número es posterior a otro si
+ * está a menos de media vuelta por delante.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public final class Secuencia {
+    /** Máscara con los bits válidos del número de secuencia. */
+    public static final int Mascara = 0x0FFF;
+    
+    private Secuencia() {
+    }
+    
+    /**
+     * Calcula la distancia con signo desde un número de secuencia a otro.
+     * 
+     * @param desde Número de secuencia de origen.
+     * @param hasta Número de secuencia de destino.
+     * @return Distancia entre -2048 y 2047, positiva si hasta es posterior.
+     */
+    public static int distancia(final int desde, final int hasta) {
+        int dist = (hasta - desde) & Mascara;
+        return (dist >= 0x0800) ? dist - 0x1000 : dist;
+    }
+    
+    /**
+     * Obtiene el número de secuencia siguiente a otro.
+     * 
+     * @param numSec Número de secuencia.
+     * @param incremento Posiciones a avanzar, puede ser negativo.
+     * @return Número de secuencia resultante.
+     */
+    public static short suma(final int numSec, final int incremento) {
+        return (short)((numSec + incremento) & Mascara);
+    }
+}
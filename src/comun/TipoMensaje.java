@@ -31,10 +31,25 @@ public enum TipoMensaje {
     REGISTRO_INCORRECTO(0x02),
     
     ACTUALIZACION(0x03),
-    CONFIRMACION(0x04);
+    CONFIRMACION(0x04),
+    LOTE(0x05),
+    ACTUALIZACION_DELTA(0x06),
+    SALIDA_VISTA(0x07),
+    RETO_REGISTRO(0x08);
     
     private final byte id;
     
+    // Tabla para buscar el tipo a partir de los 4 bits de la cabecera.
+    private static final TipoMensaje[] PorId = new TipoMensaje[0x10];
+    static {
+        for (int i = 0; i < PorId.length; i++)
+            PorId[i] = DESCONOCIDO;
+        
+        for (TipoMensaje valor : TipoMensaje.values())
+            if (valor.id >= 0 && valor.id < PorId.length)
+                PorId[valor.id] = valor;
+    }
+    
     TipoMensaje(final int id) {
         this.id = (byte)id;
     }
@@ -46,13 +61,10 @@ public enum TipoMensaje {
      * @return Tipo del mensaje asociado o DESCONICIDO si no encontrado.
      */
     public static TipoMensaje fromId(final int id) {
-        TipoMensaje tipo = TipoMensaje.DESCONOCIDO;
-        
-        for (TipoMensaje valor : TipoMensaje.values())
-            if (valor.getId() == id)
-                tipo = valor;
+        if (id < 0 || id >= PorId.length)
+            return TipoMensaje.DESCONOCIDO;
         
-        return tipo;
+        return PorId[id];
     }
     
     /**
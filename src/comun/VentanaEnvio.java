@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lado emisor de la entrega fiable.
+ * Guarda los mensajes enviados hasta que se confirman, permitiendo tener
+ * varios mensajes en vuelo a la vez en lugar de esperar la confirmación de
+ * cada uno. Los mensajes sin confirmar se retransmiten cuando vence su
+ * temporizador, que se calcula a partir del tiempo de ida y vuelta (RTT)
+ * medido como en TCP (RFC 6298).
+ * 
+ * Esta clase no es segura entre hebras, quien la use debe sincronizarla.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class VentanaEnvio {
+    /** Número máximo de mensajes sin confirmar. */
+    public static final int Tamanio = VentanaRecepcion.Tamanio;
+    
+    // Límites del temporizador de retransmisión, en milisegundos.
+    private static final long RtoInicial = 300;
+    private static final long RtoMinimo  = 50;
+    private static final long RtoMaximo  = 3000;
+    private static final long Granularidad = 10;
+    
+    // Número de retransmisiones tras las que se descarta un mensaje.
+    private static final int MaxReintentos = 8;
+    
+    private final Entrada[] entradas = new Entrada[Tamanio];
+    private int pendientes;
+    
+    // Quien recibe el resultado de cada envío, puede ser null.
+    private Aviso aviso;
+    
+    // Estimación del RTT en milisegundos.
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = RtoInicial;
+    
+    /**
+     * Crea una nueva ventana vacía.
+     */
+    public VentanaEnvio() {
+        for (int i = 0; i < Tamanio; i++)
+            this.entradas[i] = new Entrada();
+    }
+    
+    /**
+     * Comprueba si se puede enviar un mensaje con este número de secuencia.
+     * No se puede si algún mensaje enviado Tamanio o más posiciones antes
+     * todavía no se ha confirmado, ya que el receptor no podría indicarlo
+     * en su máscara y lo daría por perdido.
+     * 
+     * @param numSec Número de secuencia del nuevo mensaje.
+     * @return Verdadero si hay hueco en la ventana.
+     */
+    public boolean hayHueco(final short numSec) {
+        if (this.pendientes == 0)
+            return true;
+        
+        for (Entrada entrada : this.entradas)
+            if (entrada.pendiente &&
+                    Secuencia.distancia(entrada.numSec, numSec) >= Tamanio)
+                return false;
+        
+        return !this.entradas[numSec & (Tamanio - 1)].pendiente;
+    }
+    
+    /**
+     * Obtiene el número de mensajes sin confirmar.
+     * 
+     * @return Mensajes pendientes de confirmación.
+     */
+    public int getPendientes() {
+        return this.pendientes;
+    }
+    
+    /**
+     * Obtiene el tiempo de retransmisión actual.
+     * 
+     * @return Tiempo en milisegundos.
+     */
+    public long getRto() {
+        return this.rto;
+    }
+    
+    /**
+     * Establece quién recibe el resultado de los envíos.
+     * 
+     * @param aviso Receptor de los resultados o null.
+     */
+    public void setAviso(final Aviso aviso) {
+        this.aviso = aviso;
+    }
+    
+    /**
+     * Guarda un mensaje enviado hasta que se confirme.
+     * 
+     * @param numSec Número de secuencia del mensaje.
+     * @param datos Buffer con el mensaje codificado entre su posición
+     * y su límite. No se modifica.
+     * @param ahora Instante del envío en milisegundos.
+     */
+    public void registra(final short numSec, final ByteBuffer datos,
+            final long ahora) {
+        Entrada entrada = this.entradas[numSec & (Tamanio - 1)];
+        if (!entrada.pendiente)
+            this.pendientes++;
+        
+        entrada.pendiente = true;
+        entrada.numSec    = (short)(numSec & Secuencia.Mascara);
+        entrada.enviado   = ahora;
+        entrada.reintentos = 0;
+        entrada.datos.clear();
+        entrada.datos.put(datos.duplicate());
+        entrada.datos.flip();
+    }
+    
+    /**
+     * Procesa una confirmación recibida.
+     * Se liberan todos los mensajes hasta el acumulado y los indicados en la
+     * máscara. Si el mensaje confirmado no se había retransmitido, su tiempo
+     * de ida y vuelta actualiza la estimación del RTT.
+     * 
+     * @param confirmacion Mensaje de confirmación.
+     * @param ahora Instante de la recepción en milisegundos.
+     */
+    public void confirma(final Confirmacion confirmacion, final long ahora) {
+        short numSec = (short)(confirmacion.getNumSecuencia() & Secuencia.Mascara);
+        Entrada confirmada = this.entradas[numSec & (Tamanio - 1)];
+        if (confirmada.pendiente && confirmada.numSec == numSec &&
+                confirmada.reintentos == 0)
+            this.actualizaRtt(ahora - confirmada.enviado);
+        
+        short acumulado = confirmacion.getAcumulado();
+        int mascara = confirmacion.getMascara();
+        for (Entrada entrada : this.entradas) {
+            if (!entrada.pendiente)
+                continue;
+            
+            int dist = Secuencia.distancia(acumulado, entrada.numSec);
+            if (dist <= 0 || entrada.numSec == numSec ||
+                    (dist <= 32 && (mascara & (1 << (dist - 1))) != 0)) {
+                entrada.pendiente = false;
+                this.pendientes--;
+                if (this.aviso != null)
+                    this.aviso.confirmado(entrada.numSec);
+            }
+        }
+    }
+    
+    /**
+     * Retransmite los mensajes cuyo temporizador ha vencido.
+     * Cada retransmisión dobla el tiempo de espera de ese mensaje. Los que
+     * superan el máximo de reintentos se descartan.
+     * 
+     * @param ahora Instante actual en milisegundos.
+     * @param emisor Quien envía los datos.
+     */
+    public void retransmite(final long ahora, final Emisor emisor) {
+        if (this.pendientes == 0)
+            return;
+        
+        for (Entrada entrada : this.entradas) {
+            if (!entrada.pendiente)
+                continue;
+            
+            long espera = Math.min(this.rto << entrada.reintentos, RtoMaximo);
+            if (ahora - entrada.enviado < espera)
+                continue;
+            
+            if (entrada.reintentos >= MaxReintentos) {
+                entrada.pendiente = false;
+                this.pendientes--;
+                if (this.aviso != null)
+                    this.aviso.descartado(entrada.numSec);
+                continue;
+            }
+            
+            entrada.reintentos++;
+            entrada.enviado = ahora;
+            emisor.envia(entrada.datos);
+        }
+    }
+    
+    /**
+     * Añade una nueva medida del RTT a la estimación.
+     * 
+     * @param medida Tiempo de ida y vuelta medido en milisegundos.
+     */
+    private void actualizaRtt(final long medida) {
+        if (this.srtt < 0) {
+            this.srtt   = medida;
+            this.rttvar = medida / 2;
+        } else {
+            this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - medida)) / 4;
+            this.srtt   = (7 * this.srtt + medida) / 8;
+        }
+        
+        long valor = this.srtt + Math.max(Granularidad, 4 * this.rttvar);
+        this.rto = Math.max(RtoMinimo, Math.min(RtoMaximo, valor));
+    }
+    
+    /**
+     * Interfaz para enviar los mensajes retransmitidos.
+     */
+    public interface Emisor {
+        /**
+         * Envía los datos de un mensaje.
+         * 
+         * @param datos Buffer con el mensaje entre su posición y su límite.
+         * No se debe modificar su posición.
+         */
+        void envia(ByteBuffer datos);
+    }
+    
+    /**
+     * Interfaz para recibir el resultado de cada envío.
+     */
+    public interface Aviso {
+        /**
+         * El mensaje ha sido confirmado.
+         * 
+         * @param numSec Número de secuencia del mensaje.
+         */
+        void confirmado(short numSec);
+        
+        /**
+         * El mensaje se ha descartado tras agotar los reintentos.
+         * 
+         * @param numSec Número de secuencia del mensaje.
+         */
+        void descartado(short numSec);
+    }
+    
+    /**
+     * Mensaje guardado en la ventana.
+     */
+    private static class Entrada {
+        private final ByteBuffer datos = ByteBuffer.allocate(Mensaje.GetMaxMsgSize());
+        private boolean pendiente;
+        private short numSec;
+        private long enviado;
+        private int reintentos;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package comun;
+
+/**
+ * Lado receptor de la entrega fiable.
+ * Lleva la cuenta de los números de secuencia recibidos para detectar
+ * duplicados y generar las confirmaciones: un número acumulado (todos los
+ * anteriores e incluido se han recibido) y una máscara de 32 bits en la que
+ * el bit i indica que se ha recibido el número acumulado + 1 + i.
+ * 
+ * @author Benito Palacios Sánchez
+ */
+public class VentanaRecepcion {
+    /** Número de mensajes por delante del acumulado que se pueden indicar. */
+    public static final int Tamanio = 32;
+    
+    private boolean iniciada = false;
+    private short acumulado;
+    private int mascara;
+    
+    // Último número de secuencia entregado para cada clave, para descartar
+    // mensajes retransmitidos que llegan después de otro más reciente.
+    // Es una tabla de direccionamiento abierto que crece con las claves, así
+    // que nunca se olvida una: como mucho hay 65536. Cada clave se guarda
+    // más uno para que el 0 indique un hueco vacío.
+    private static final int TamInicial = 16;
+    private int[] claves = new int[TamInicial];
+    private short[] ultimos = new short[TamInicial];
+    private int numClaves;
+    
+    /**
+     * Registra la recepción de un mensaje.
+     * El primer mensaje recibido se coloca al final de la máscara, de forma
+     * que todavía se pueden recibir los anteriores que vengan desordenados
+     * sin confirmar ninguno que no haya llegado. Si un mensaje llega tan
+     * adelantado que no cabe en la máscara, los que faltan se dan por
+     * perdidos: el emisor no envía un mensaje hasta que se han confirmado
+     * todos los que tiene Tamanio posiciones por detrás.
+     * 
+     * @param numSec Número de secuencia recibido.
+     * @return Verdadero si es la primera vez que se recibe, falso si es
+     * un duplicado.
+     */
+    public boolean recibe(final short numSec) {
+        if (!this.iniciada) {
+            this.iniciada  = true;
+            this.acumulado = Secuencia.suma(numSec, -Tamanio);
+            this.mascara   = 0;
+        }
+        
+        int dist = Secuencia.distancia(this.acumulado, numSec);
+        if (dist <= 0)
+            return false;
+        
+        // Si no cabe, desplaza la ventana hasta que quepa.
+        if (dist > Tamanio) {
+            int salto = dist - Tamanio;
+            this.mascara = (salto >= Tamanio) ? 0 : this.mascara >>> salto;
+            this.acumulado = Secuencia.suma(this.acumulado, salto);
+            dist = Tamanio;
+        }
+        
+        int bit = 1 << (dist - 1);
+        if ((this.mascara & bit) != 0)
+            return false;
+        this.mascara |= bit;
+        
+        // Avanza el acumulado mientras el siguiente esté recibido.
+        while ((this.mascara & 1) != 0) {
+            this.mascara >>>= 1;
+            this.acumulado = Secuencia.suma(this.acumulado, 1);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Comprueba si un mensaje es más reciente que el último entregado con
+     * la misma clave y, en ese caso, lo marca como el último.
+     * Sirve para no aplicar un estado antiguo retransmitido después de uno
+     * más nuevo sobre el mismo objeto.
+     * 
+     * @param clave Clave del objeto al que se refiere el mensaje.
+     * @param numSec Número de secuencia del mensaje.
+     * @return Verdadero si es más reciente o es la primera vez que se ve
+     * la clave.
+     */
+    public boolean esReciente(final short clave, final short numSec) {
+        int idx = this.busca(clave);
+        if (this.claves[idx] != 0) {
+            if (Secuencia.distancia(this.ultimos[idx], numSec) <= 0)
+                return false;
+            
+            this.ultimos[idx] = numSec;
+            return true;
+        }
+        
+        // Clave nueva. La tabla crece antes de llenarse a la mitad.
+        if (2 * (this.numClaves + 1) > this.claves.length) {
+            this.crece();
+            idx = this.busca(clave);
+        }
+        
+        this.claves[idx]  = (clave & 0xFFFF) + 1;
+        this.ultimos[idx] = numSec;
+        this.numClaves++;
+        return true;
+    }
+    
+    /**
+     * Busca el hueco de una clave en la tabla.
+     * 
+     * @param clave Clave a buscar.
+     * @return Índice de la clave o del hueco vacío donde iría.
+     */
+    private int busca(final short clave) {
+        int guardada = (clave & 0xFFFF) + 1;
+        int mascaraTabla = this.claves.length - 1;
+        int idx = (guardada * 0x9E3779B9) >>> 15 & mascaraTabla;
+        while (this.claves[idx] != 0 && this.claves[idx] != guardada)
+            idx = (idx + 1) & mascaraTabla;
+        return idx;
+    }
+    
+    /**
+     * Duplica el tamaño de la tabla de claves y las vuelve a colocar.
+     */
+    private void crece() {
+        int[] viejasClaves = this.claves;
+        short[] viejosUltimos = this.ultimos;
+        this.claves  = new int[viejasClaves.length * 2];
+        this.ultimos = new short[viejasClaves.length * 2];
+        
+        for (int i = 0; i < viejasClaves.length; i++) {
+            if (viejasClaves[i] == 0)
+                continue;
+            
+            int idx = this.busca((short)(viejasClaves[i] - 1));
+            this.claves[idx]  = viejasClaves[i];
+            this.ultimos[idx] = viejosUltimos[i];
+        }
+    }
+    
+    /**
+     * Obtiene el número de secuencia acumulado.
+     * Se han recibido todos los mensajes hasta él incluido.
+     * 
+     * @return Número de secuencia acumulado.
+     */
+    public short getAcumulado() {
+        return this.acumulado;
+    }
+    
+    /**
+     * Obtiene la máscara de los mensajes recibidos por delante del acumulado.
+     * 
+     * @return Máscara de confirmación selectiva.
+     */
+    public int getMascara() {
+        return this.mascara;
+    }
+}
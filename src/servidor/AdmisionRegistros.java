@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Control de admisión de las solicitudes de registro.
+ * Cada registro asigna un mapa y envía al jugador todo lo que ve, así que
+ * si llegan más por segundo de los indicados, el resto se guardan en una
+ * cola acotada y se procesan según se rellena el cubo de fichas. Las que no
+ * caben o esperan más de lo que el cliente tarda en rendirse se descartan.
+ * Cada servicio está como mucho una vez en la cola, ya que el cliente repite
+ * la solicitud si tarda en llegar la respuesta. Para comprobarlo sin
+ * recorrer la cola, el servicio se marca mientras está en ella.
+ * Sólo lo usa la hebra que recibe los paquetes.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class AdmisionRegistros {
+    // Tiempo tras el que el cliente ha dejado de esperar la respuesta.
+    private static final long MaxEspera = 3000;
+
+    // Las solicitudes de registro ocupan mucho menos, incluso con CRC.
+    private static final int TamSolicitud = 64;
+
+    private final CuboFichas cubo;
+    private final LimitesCarga limites;
+
+    // Solicitudes aplazadas en orden de llegada y huecos libres para ellas.
+    private final Queue<Aplazada> cola = new ArrayDeque<>();
+    private final Queue<Aplazada> libres = new ArrayDeque<>();
+
+    /**
+     * Crea el control de admisión.
+     * La cola tiene hueco para las solicitudes que se pueden admitir mientras
+     * el cliente espera.
+     *
+     * @param porSegundo Registros que se procesan por segundo.
+     * @param limites Contadores de los descartes.
+     */
+    public AdmisionRegistros(final int porSegundo, final LimitesCarga limites) {
+        this.cubo = new CuboFichas(porSegundo);
+        this.limites = limites;
+
+        long capacidad = porSegundo * MaxEspera / 1000;
+        for (long i = 0; i < capacidad; i++)
+            this.libres.offer(new Aplazada());
+    }
+
+    /**
+     * Comprueba si se puede procesar ya una solicitud de registro.
+     * Si no, se guarda una copia para más tarde o se descarta.
+     *
+     * @param serv Servicio que la envía.
+     * @param datos Buffer con la solicitud. No se modifica su posición.
+     * @param ahora Instante actual en milisegundos.
+     * @return Verdadero si se debe procesar ahora.
+     */
+    public boolean admite(final Servicio serv, final ByteBuffer datos,
+            final long ahora) {
+        // Si hay otras esperando, va detrás de ellas.
+        if (this.cola.isEmpty() && this.cubo.gasta(ahora))
+            return true;
+
+        if (serv.isAplazado())
+            return false;
+
+        Aplazada aplazada = this.libres.peek();
+        if (aplazada == null || datos.remaining() > TamSolicitud) {
+            this.limites.descartaRegistro();
+            return false;
+        }
+
+        this.libres.poll();
+        aplazada.datos.clear();
+        aplazada.datos.put(datos.duplicate());
+        aplazada.datos.flip();
+        aplazada.serv = serv;
+        aplazada.instante = ahora;
+        this.cola.offer(aplazada);
+        serv.setAplazado(true);
+        this.limites.aplazaRegistro();
+        return false;
+    }
+
+    /**
+     * Entrega las solicitudes aplazadas para las que ya hay fichas y
+     * descarta las que llevan demasiado tiempo esperando.
+     *
+     * @param ahora Instante actual en milisegundos.
+     * @param despachador Despachador al que se entregan.
+     */
+    public void procesa(final long ahora, final Despachador despachador) {
+        Aplazada aplazada;
+        while ((aplazada = this.cola.peek()) != null) {
+            boolean caducada = ahora - aplazada.instante > MaxEspera;
+            if (!caducada && !this.cubo.gasta(ahora))
+                break;
+
+            this.cola.poll();
+            aplazada.serv.setAplazado(false);
+            if (caducada)
+                this.limites.descartaRegistro();
+            else
+                despachador.entrega(aplazada.serv, aplazada.datos);
+
+            aplazada.serv = null;
+            this.libres.offer(aplazada);
+        }
+    }
+
+    /**
+     * Comprueba si hay solicitudes esperando.
+     *
+     * @return Verdadero si la cola no está vacía.
+     */
+    public boolean hayAplazadas() {
+        return !this.cola.isEmpty();
+    }
+
+    /**
+     * Solicitud de registro aplazada. Se reutilizan.
+     */
+    private static class Aplazada {
+        private final ByteBuffer datos = ByteBuffer.allocate(TamSolicitud);
+        private Servicio serv;
+        private long instante;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decide en qué mapa entra cada jugador y lleva la cuenta de los jugadores
+ * de cada mapa.
+ * Los mapas se clasifican por su número de jugadores, así que elegir uno con
+ * sitio sólo cuesta recorrer las posibles ocupaciones y no todos los mapas.
+ * Cada mapa tiene además una tabla con sus jugadores para comprobar al
+ * momento que no se repite un ID.
+ * Los mapas se destruyen cuando se va su último jugador y sus ID se
+ * reutilizan para los siguientes, así que el número de mapas depende de
+ * los jugadores conectados y no del máximo que ha habido.
+ * Con reserva, los jugadores nuevos sólo llenan cada mapa hasta el máximo
+ * menos la reserva, y las plazas que quedan son para quien vuelve al mapa
+ * del que acaba de salir.
+ * Sólo lo usa la hebra que recibe los paquetes.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class AsignadorMapas {
+    // Número máximo de jugadores por mapa y número hasta el que se llenan
+    // con jugadores nuevos, dejando el resto de plazas reservadas.
+    private final int maxJugadores;
+    private final int limite;
+    private final PoliticaMapas politica;
+
+    // Jugadores de cada mapa por su ID.
+    private final TablaLong<TablaLong<Servicio>> mapas = new TablaLong<>();
+
+    // Mapas clasificados por su número de jugadores.
+    private final List<Set<Short>> porOcupacion;
+
+    // ID de los mapas destruidos para reutilizar y siguiente ID nuevo.
+    private final Deque<Short> libres = new ArrayDeque<>();
+    private short siguienteId;
+
+    // Último mapa del que ha salido cada jugador, por su ID, para volver
+    // a él usando la reserva. Sólo se guarda si hay reserva. Junto al ID
+    // se guarda su tabla de jugadores, que cambia si el mapa se destruye
+    // y se reutiliza su ID.
+    private final TablaLong<Anterior> anteriores = new TablaLong<>();
+
+    /**
+     * Crea un asignador sin mapas.
+     *
+     * @param maxJugadores Número máximo de jugadores por mapa.
+     * @param reserva Plazas de cada mapa que no se dan a jugadores nuevos,
+     * sino a los que vuelven al mapa del que salieron.
+     * @param politica Criterio para elegir el mapa.
+     */
+    public AsignadorMapas(final int maxJugadores, final int reserva,
+            final PoliticaMapas politica) {
+        this.maxJugadores = Math.max(maxJugadores, 1);
+        this.limite = Math.max(this.maxJugadores - reserva, 1);
+        this.politica = politica;
+
+        this.porOcupacion = new ArrayList<>(this.maxJugadores + 1);
+        for (int i = 0; i <= this.maxJugadores; i++)
+            this.porOcupacion.add(new LinkedHashSet<Short>());
+    }
+
+    /**
+     * Coloca a un jugador en un mapa, creándolo si no hay sitio.
+     * Si vuelve al mapa del que salió y todavía existe, entra en él aunque
+     * sólo queden plazas de la reserva. Si no, decide la política.
+     *
+     * @param serv Servicio del jugador, ya con su ID.
+     * @return ID del mapa asignado.
+     */
+    public short asigna(final Servicio serv) {
+        short mapaId = this.getAnterior(serv.getUserId());
+        if (mapaId == -1)
+            mapaId = this.politica.elige(this, serv.getUserId());
+        if (mapaId == -1) {
+            mapaId = this.libres.isEmpty() ? this.siguienteId++ : this.libres.pop();
+            this.mapas.put(mapaId, new TablaLong<Servicio>());
+            this.porOcupacion.get(0).add(mapaId);
+        }
+
+        TablaLong<Servicio> jugadores = this.mapas.get(mapaId);
+        this.porOcupacion.get(jugadores.size()).remove(mapaId);
+        jugadores.put(serv.getUserId(), serv);
+        this.porOcupacion.get(jugadores.size()).add(mapaId);
+        return mapaId;
+    }
+
+    /**
+     * Quita a un jugador de su mapa.
+     * Si era el último, el mapa se destruye y quien llama debe liberar lo
+     * que tuviera asociado a él antes de que se vuelva a usar su ID. Si no,
+     * y hay reserva, se apunta el mapa por si el jugador vuelve.
+     * Si el jugador ya no estaba, no hace nada.
+     *
+     * @param serv Servicio del jugador.
+     * @return Verdadero si se ha destruido el mapa.
+     */
+    public boolean quita(final Servicio serv) {
+        short mapaId = serv.getMapaId();
+        TablaLong<Servicio> jugadores = this.mapas.get(mapaId);
+        if (jugadores == null || jugadores.get(serv.getUserId()) != serv)
+            return false;
+
+        this.porOcupacion.get(jugadores.size()).remove(mapaId);
+        jugadores.remove(serv.getUserId());
+        if (!jugadores.isEmpty()) {
+            this.porOcupacion.get(jugadores.size()).add(mapaId);
+            if (this.limite < this.maxJugadores)
+                this.anteriores.put(serv.getUserId(),
+                        new Anterior(mapaId, jugadores));
+            return false;
+        }
+
+        this.mapas.remove(mapaId);
+        this.libres.push(mapaId);
+        return true;
+    }
+
+    /**
+     * Obtiene el mapa del que salió un jugador si puede volver a él.
+     * El mapa tiene que seguir siendo el mismo, no otro con su ID, y tener
+     * alguna plaza libre, aunque sea de la reserva. Sólo se vuelve una vez.
+     *
+     * @param userId ID del jugador.
+     * @return ID del mapa o -1 si no hay al que volver.
+     */
+    private short getAnterior(final short userId) {
+        Anterior anterior = this.anteriores.remove(userId);
+        if (anterior == null)
+            return -1;
+
+        TablaLong<Servicio> jugadores = this.mapas.get(anterior.mapaId);
+        if (jugadores != anterior.jugadores
+                || jugadores.size() >= this.maxJugadores
+                || jugadores.contiene(userId))
+            return -1;
+
+        return anterior.mapaId;
+    }
+
+    /**
+     * Obtiene el número de jugadores de un mapa.
+     *
+     * @param mapaId ID del mapa.
+     * @return Número de jugadores.
+     */
+    public int getNumJugadores(final short mapaId) {
+        TablaLong<Servicio> jugadores = this.mapas.get(mapaId);
+        return (jugadores == null) ? 0 : jugadores.size();
+    }
+
+    /**
+     * Obtiene el número de jugadores hasta el que se llenan los mapas con
+     * jugadores nuevos.
+     *
+     * @return Número de jugadores.
+     */
+    public int getLimite() {
+        return this.limite;
+    }
+
+    /**
+     * Obtiene los mapas con un número de jugadores.
+     *
+     * @param numJugadores Número de jugadores.
+     * @return ID de los mapas, que no se debe modificar.
+     */
+    public Set<Short> getMapas(final int numJugadores) {
+        return this.porOcupacion.get(numJugadores);
+    }
+
+    /**
+     * Comprueba si hay un jugador con un ID en un mapa.
+     *
+     * @param mapaId ID del mapa.
+     * @param userId ID del jugador.
+     * @return Verdadero si está.
+     */
+    public boolean contiene(final short mapaId, final short userId) {
+        TablaLong<Servicio> jugadores = this.mapas.get(mapaId);
+        return jugadores != null && jugadores.contiene(userId);
+    }
+
+    /**
+     * Mapa del que ha salido un jugador.
+     */
+    private static class Anterior {
+        private final short mapaId;
+        private final TablaLong<Servicio> jugadores;
+
+        /**
+         * Crea una nueva instancia.
+         *
+         * @param mapaId ID del mapa.
+         * @param jugadores Tabla de jugadores del mapa.
+         */
+        public Anterior(final short mapaId,
+                final TablaLong<Servicio> jugadores) {
+            this.mapaId = mapaId;
+            this.jugadores = jugadores;
+        }
+    }
+}
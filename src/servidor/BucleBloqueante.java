@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bucle del servidor con un socket UDP bloqueante.
+ * Recibe un único datagrama por cada llamada al sistema.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class BucleBloqueante extends BucleServidor {
+    private final int puerto;
+    private DatagramSocket socket;
+
+    // Paquete reutilizado por cada hebra para enviar.
+    private final ThreadLocal<DatagramPacket> paqueteSalida =
+            new ThreadLocal<DatagramPacket>() {
+                @Override
+                protected DatagramPacket initialValue() {
+                    return new DatagramPacket(new byte[0], 0);
+                }
+            };
+
+    /**
+     * Crea una nueva instancia del bucle.
+     *
+     * @param puerto Puerto en el que escuchar.
+     * @param config Opciones del servidor.
+     */
+    public BucleBloqueante(final int puerto, final Configuracion config) {
+        super(config);
+        this.puerto = puerto;
+    }
+
+    @Override
+    protected void recibePaquetes() throws IOException {
+        // Crea un socket UDP y comienza a escuchar en el puerto indicado.
+        // Si se ha indicado la interfaz de los grupos multicast hace falta
+        // un socket multicast, pero sin compartir el puerto.
+        NetworkInterface interfaz = this.getInterfazMulticast();
+        if (interfaz != null) {
+            MulticastSocket multicast = new MulticastSocket(null);
+            multicast.setReuseAddress(false);
+            multicast.bind(new InetSocketAddress(this.puerto));
+            multicast.setNetworkInterface(interfaz);
+            this.socket = multicast;
+        } else {
+            this.socket = new DatagramSocket(this.puerto);
+        }
+
+        // Nos despertamos al menos una vez por tick para revisar
+        // los clientes inactivos y enviar el estado de los mapas.
+        int espera = this.getEspera();
+        this.socket.setSoTimeout(espera);
+
+        // El buffer y el paquete se reutilizan para cada datagrama.
+        byte[] buffer = new byte[Mensaje.GetMaxMsgSize()];
+        ByteBuffer datos = ByteBuffer.wrap(buffer);
+        DatagramPacket paquete = new DatagramPacket(buffer, buffer.length);
+
+        while (true) {
+            // Mientras haya registros aplazados se espera menos.
+            if (this.getEspera() != espera) {
+                espera = this.getEspera();
+                this.socket.setSoTimeout(espera);
+            }
+
+            // Recibo un nuevo paquete.
+            paquete.setLength(buffer.length);
+            try {
+                this.socket.receive(paquete);
+            } catch (SocketTimeoutException ex) {
+                this.revisaTemporizadores(getAhora());
+                continue;
+            }
+
+            datos.clear();
+            datos.limit(paquete.getLength());
+            this.entrega(paquete.getAddress(), paquete.getPort(), datos);
+        }
+    }
+
+    @Override
+    public void envia(final ByteBuffer datos, final SocketAddress destino)
+            throws IOException {
+        this.getMetricas().anotaEnviado(datos);
+
+        // Los buffers de los servicios siempre tienen un vector detrás.
+        DatagramPacket paquete = this.paqueteSalida.get();
+        paquete.setData(datos.array(), datos.arrayOffset() + datos.position(),
+                datos.remaining());
+        paquete.setSocketAddress(destino);
+        this.socket.send(paquete);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+/**
+ * Bucle del servidor con un canal UDP no bloqueante y un selector.
+ * En cada despertar del selector se leen todos los datagramas pendientes
+ * usando siempre el mismo buffer directo, de forma que no se reserva
+ * memoria por cada paquete.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class BucleNio extends BucleServidor {
+    private final int puerto;
+    private DatagramChannel canal;
+
+    // Buffer directo reutilizado para todas las lecturas.
+    private final ByteBuffer bufferEntrada =
+            ByteBuffer.allocateDirect(Mensaje.GetMaxMsgSize());
+
+    /**
+     * Crea una nueva instancia del bucle.
+     *
+     * @param puerto Puerto en el que escuchar.
+     * @param config Opciones del servidor.
+     */
+    public BucleNio(final int puerto, final Configuracion config) {
+        super(config);
+        this.puerto = puerto;
+    }
+
+    @Override
+    protected void recibePaquetes() throws IOException {
+        this.canal = DatagramChannel.open();
+        this.canal.bind(new InetSocketAddress(this.puerto));
+        NetworkInterface interfaz = this.getInterfazMulticast();
+        if (interfaz != null)
+            this.canal.setOption(StandardSocketOptions.IP_MULTICAST_IF, interfaz);
+        this.canal.configureBlocking(false);
+
+        Selector selector = Selector.open();
+        this.canal.register(selector, SelectionKey.OP_READ);
+
+        while (true) {
+            // Nos despertamos al menos una vez por tick para revisar
+            // los clientes inactivos y enviar el estado de los mapas.
+            if (selector.select(this.getEspera()) == 0)
+                this.revisaTemporizadores(getAhora());
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (key.isValid() && key.isReadable())
+                    this.vaciaCanal();
+            }
+        }
+    }
+
+    /**
+     * Lee y procesa todos los datagramas disponibles en el canal.
+     *
+     * @throws IOException Si hay un error en el canal.
+     */
+    private void vaciaCanal() throws IOException {
+        SocketAddress addr;
+        while (true) {
+            this.bufferEntrada.clear();
+            addr = this.canal.receive(this.bufferEntrada);
+            if (addr == null)
+                break;
+
+            this.bufferEntrada.flip();
+            InetSocketAddress origen = (InetSocketAddress)addr;
+            this.entrega(origen.getAddress(), origen.getPort(),
+                    this.bufferEntrada);
+        }
+    }
+
+    @Override
+    public void envia(final ByteBuffer datos, final SocketAddress destino)
+            throws IOException {
+        // Si el buffer del socket está lleno el datagrama se descarta,
+        // igual que haría la red con cualquier paquete UDP.
+        this.getMetricas().anotaEnviado(datos);
+
+        int posicion = datos.position();
+        this.canal.send(datos, destino);
+        datos.position(posicion);
+    }
+}
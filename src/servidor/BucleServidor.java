@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import comun.MessageFormatException;
+import comun.RegistroSolicitud;
+import comun.RetoRegistro;
+import comun.TipoMensaje;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+
+/**
+ * Bucle principal del servidor.
+ * Recibe los datagramas de los clientes y se los entrega al servicio
+ * correspondiente. Las subclases implementan la forma de recibir y enviar.
+ *
+ * @author Benito Palacios Sánchez
+ */
+abstract class BucleServidor implements Transporte {
+    // Diccionario para controlar de quién es cada paquete.
+    // Este bucle se encargar de añadirlos cuando se crea un servicio.
+    // Las direcciones IPv4 se buscan por su dirección y puerto juntos en un
+    // long, sin reservar memoria. El resto, en una tabla normal.
+    private final TablaLong<Servicio> addrServicio = new TablaLong<>();
+    private final Map<SocketAddress, Servicio> addrServicioOtras = new HashMap<>();
+
+    // Las direcciones sin servicio tienen que repetir la cookie de un reto
+    // antes de que se cree el suyo. Mensajes y buffer reutilizados para ello.
+    private final GeneradorCookies cookies = new GeneradorCookies();
+    private final RegistroSolicitud solicitud = new RegistroSolicitud();
+    private final RetoRegistro reto = new RetoRegistro();
+    private final ByteBuffer salidaReto = ByteBuffer.allocate(
+            Mensaje.GetMaxMsgSize());
+
+    // Decide el mapa de cada jugador. Los servicios se añaden ellos solos
+    // cuando un jugador se loguea y el despachador los quita cuando pierde.
+    private final AsignadorMapas asignador;
+
+    // Decide en qué hebra se procesa cada paquete.
+    private final Despachador despachador;
+
+    // Usuarios admitidos, leídos al arrancar y compartidos por todos los
+    // servicios. Si es null se admite a cualquiera.
+    private final Credenciales credenciales;
+
+    // Tiempo en milisegundos tras el que se expulsa a un cliente que no
+    // envía paquetes y rueda para comprobarlo. Si es 0 no se expulsa.
+    private final long inactividad;
+    private final RuedaTemporal<Servicio> rueda;
+
+    // Cada cuánto se avanza la rueda, en milisegundos.
+    protected static final int DuracionTick = 1000;
+
+    // Espera máxima mientras hay registros aplazados, en milisegundos.
+    private static final int EsperaAplazados = 10;
+
+    // Milisegundos entre cada envío del estado de los mapas en el modo con
+    // tick fijo, o de los lotes de actualizaciones, e instante del siguiente
+    // envío. Si es 0 las actualizaciones se reenvían en cuanto llegan.
+    private final long periodoDifusion;
+    private long siguienteDifusion;
+
+    // Si las actualizaciones para cada cliente se agrupan en lotes.
+    private final boolean conLote;
+
+    // Si se descartan los paquetes que no terminan con el CRC16 del mensaje.
+    private final boolean exigeCrc;
+
+    // Grupos multicast de los mapas e interfaz por la que se envía a ellos.
+    // Si no hay grupos, las actualizaciones se envían a cada jugador.
+    private final GruposMulticast grupos;
+    private final NetworkInterface interfazMulticast;
+
+    // Hebra que envía los datagramas desde la cola de cada cliente, o null
+    // si cada hebra los envía directamente.
+    private final Emisor emisor;
+
+    // Límites de paquetes por segundo de cada cliente y mapa, y control de
+    // admisión de los registros, o null si se procesan todos al llegar.
+    private final LimitesCarga limites;
+    private final AdmisionRegistros admision;
+
+    // Métricas del servidor. Si se indica, se sirven en un puerto TCP local
+    // y se vuelcan a un fichero cada tantos segundos.
+    private final Metricas metricas = new Metricas();
+    private final int puertoMetricas;
+    private final String ficheroVolcado;
+    private final int periodoVolcado;
+
+    /**
+     * Crea una nueva instancia del bucle.
+     *
+     * @param config Opciones del servidor.
+     * @throws IllegalArgumentException Si alguna opción no es válida o no
+     * se puede leer el fichero de usuarios.
+     */
+    protected BucleServidor(final Configuracion config) {
+        // Con tick los lotes se envían al final de cada tick, si no,
+        // cada tantos milisegundos como se indique.
+        int frecuencia = config.getEntero("tick", 0);
+        int periodoLote = config.getEntero("lote", 0);
+        this.conLote = periodoLote > 0;
+        if (frecuencia > 0)
+            this.periodoDifusion = Math.max(1000 / frecuencia, 1);
+        else
+            this.periodoDifusion = Math.max(periodoLote, 0);
+        this.siguienteDifusion = getAhora() + this.periodoDifusion;
+
+        // Los jugadores nuevos van al mapa que diga la política, sin pasar
+        // del máximo menos las plazas reservadas para los que vuelven.
+        PoliticaMapas politica;
+        if ("equilibrar".equals(config.getCadena("politica", "llenar")))
+            politica = new PoliticaEquilibrar();
+        else
+            politica = new PoliticaLlenar();
+        this.asignador = new AsignadorMapas(
+                config.getEntero("jugadores", 8),
+                config.getEntero("reserva", 0),
+                politica
+        );
+
+        // Cada jugador sólo recibe lo que pasa a esta distancia de él.
+        int vision = config.getEntero("vision", 10);
+
+        // Con multicast cada mapa envía sus actualizaciones a su grupo.
+        String multicast = config.getCadena("multicast", null);
+        this.grupos = (multicast != null)
+                ? GruposMulticast.FromCadena(this, multicast) : null;
+        this.interfazMulticast = getInterfaz(config.getCadena("interfaz", null));
+
+        // Límites de paquetes por segundo. Con 0 no hay límite.
+        this.limites = new LimitesCarga(
+                config.getEntero("limite", 0),
+                config.getEntero("limitemapa", 0),
+                this.metricas
+        );
+        int registros = config.getEntero("registros", 0);
+        this.admision = (registros > 0)
+                ? new AdmisionRegistros(registros, this.limites) : null;
+
+        // Si se piden trabajadores los mapas se reparten entre varias hebras,
+        // si no, todo se procesa en la hebra que recibe.
+        int numTrabajadores = config.getEntero("trabajadores", 0);
+        if (numTrabajadores > 0) {
+            this.despachador = new DespachadorTrabajadores(
+                    numTrabajadores,
+                    config.getEntero("cola", 1024),
+                    this.asignador,
+                    this.periodoDifusion,
+                    frecuencia > 0,
+                    vision,
+                    this.grupos,
+                    this.limites,
+                    this.metricas
+            );
+        } else {
+            this.despachador = new DespachadorDirecto(
+                    this.asignador,
+                    frecuencia > 0,
+                    vision,
+                    this.grupos,
+                    this.limites,
+                    this.metricas
+            );
+        }
+
+        // Sin fichero de usuarios no se comprueban las contraseñas.
+        String ficheroUsuarios = config.getCadena("usuarios", null);
+        if (ficheroUsuarios != null) {
+            try {
+                this.credenciales = Credenciales.FromFile(ficheroUsuarios);
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(
+                        "No se pueden leer los usuarios: " + ex.getMessage(), ex);
+            }
+            System.out.println("Usuarios admitidos: "
+                    + this.credenciales.getNumUsuarios());
+        } else {
+            this.credenciales = null;
+        }
+
+        this.exigeCrc = config.getBooleano("crc", false);
+
+        // Con cola de salida una hebra aparte hace los envíos.
+        int kbSalida = config.getEntero("salida", 0);
+        this.emisor = (kbSalida > 0)
+                ? new Emisor(kbSalida * 1024, this.metricas) : null;
+
+        this.puertoMetricas = config.getEntero("metricas", 0);
+        this.ficheroVolcado = config.getCadena("volcado", null);
+        this.periodoVolcado = Math.max(config.getEntero("periodovolcado", 10), 1);
+
+        this.inactividad = config.getEntero("inactividad", 60) * 1000L;
+        if (this.inactividad > 0) {
+            this.rueda = new RuedaTemporal<>(
+                    DuracionTick,
+                    this.inactividad,
+                    getAhora()
+            );
+        } else {
+            this.rueda = null;
+        }
+    }
+
+    /**
+     * Busca una interfaz de red por su nombre.
+     *
+     * @param nombre Nombre de la interfaz o null.
+     * @return Interfaz o null si no se ha indicado.
+     * @throws IllegalArgumentException Si no existe.
+     */
+    private static NetworkInterface getInterfaz(final String nombre) {
+        if (nombre == null)
+            return null;
+
+        try {
+            NetworkInterface interfaz = NetworkInterface.getByName(nombre);
+            if (interfaz != null)
+                return interfaz;
+        } catch (IOException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+
+        throw new IllegalArgumentException("No existe la interfaz " + nombre);
+    }
+
+    /**
+     * Obtiene la interfaz por la que se envía a los grupos multicast.
+     * Las subclases la deben configurar en su socket.
+     *
+     * @return Interfaz o null para usar la del sistema.
+     */
+    protected NetworkInterface getInterfazMulticast() {
+        return this.interfazMulticast;
+    }
+
+    /**
+     * Obtiene las métricas del servidor.
+     * Las subclases anotan en ellas cada datagrama enviado.
+     *
+     * @return Métricas del servidor.
+     */
+    protected Metricas getMetricas() {
+        return this.metricas;
+    }
+
+    /**
+     * Recibe y procesa paquetes de forma indefinida.
+     *
+     * @throws IOException Si hay un error al abrir o usar el socket.
+     */
+    public void ejecuta() throws IOException {
+        this.despachador.comenzar();
+        if (this.emisor != null)
+            this.emisor.start();
+
+        if (this.puertoMetricas > 0)
+            new ServidorMetricas(this.puertoMetricas, this.metricas).start();
+        if (this.ficheroVolcado != null) {
+            long periodo = this.periodoVolcado * 1000L;
+            new Timer("Volcado", true).scheduleAtFixedRate(
+                    new VolcadoMetricas(this.ficheroVolcado, this.metricas),
+                    periodo, periodo);
+        }
+
+        this.recibePaquetes();
+    }
+
+    /**
+     * Abre el socket y recibe paquetes de forma indefinida.
+     *
+     * @throws IOException Si hay un error al abrir o usar el socket.
+     */
+    protected abstract void recibePaquetes() throws IOException;
+
+    /**
+     * Entrega un paquete recibido al servicio de su dirección.
+     * Si el servicio no existía de antes, sólo lo crea para una solicitud de
+     * registro con una cookie válida.
+     *
+     * @param ip Dirección IP del cliente que envía el paquete.
+     * @param puerto Puerto del cliente.
+     * @param datos Buffer con los datos recibidos entre su posición y límite.
+     */
+    protected void entrega(final InetAddress ip, final int puerto,
+            final ByteBuffer datos) {
+        this.metricas.anotaRecibido(datos);
+
+        long ahora = getAhora();
+        long clave = getClave(ip, puerto);
+        Servicio serv = (clave != -1) ? this.addrServicio.get(clave)
+                : this.addrServicioOtras.get(new InetSocketAddress(ip, puerto));
+        if (serv == null) {
+            if (!this.compruebaCookie(ip, puerto, datos, ahora)) {
+                this.revisaTemporizadores(ahora);
+                return;
+            }
+
+            SocketAddress addr = new InetSocketAddress(ip, puerto);
+            serv = new Servicio(this, addr, this.asignador, this.despachador,
+                    this.credenciales, this.grupos, this.conLote,
+                    this.exigeCrc, this.emisor, this.limites, this.metricas);
+            if (clave != -1)
+                this.addrServicio.put(clave, serv);
+            else
+                this.addrServicioOtras.put(addr, serv);
+            this.metricas.incrementa(Metricas.Sesiones);
+            if (this.rueda != null)
+                this.rueda.programa(serv, ahora + this.inactividad);
+        }
+        serv.setUltimoPaquete(ahora);
+
+        // Con demasiados registros por segundo, los siguientes esperan.
+        if (this.admision != null && serv.getMapaId() == -1
+                && Mensaje.PeekTipo(datos) == TipoMensaje.REGISTRO_SOLICITUD
+                && !this.admision.admite(serv, datos, ahora)) {
+            this.revisaTemporizadores(ahora);
+            return;
+        }
+
+        // Le envío el paquete al servicio
+        // Él se encargará de convertir a mensaje y procesarlo.
+        this.despachador.entrega(serv, datos);
+
+        this.revisaTemporizadores(ahora);
+    }
+
+    /**
+     * Comprueba el paquete de una dirección que todavía no tiene servicio.
+     * Sólo se acepta una solicitud de registro que repite la cookie de un
+     * reto. Si no la tiene o ha caducado se responde con un reto nuevo, sin
+     * guardar nada, y cualquier otro paquete se descarta.
+     *
+     * @param ip Dirección IP del cliente.
+     * @param puerto Puerto del cliente.
+     * @param datos Buffer con los datos recibidos. Su posición no cambia.
+     * @param ahora Instante actual en milisegundos.
+     * @return Verdadero si se debe crear el servicio.
+     */
+    private boolean compruebaCookie(final InetAddress ip, final int puerto,
+            final ByteBuffer datos, final long ahora) {
+        if (Mensaje.PeekTipo(datos) != TipoMensaje.REGISTRO_SOLICITUD) {
+            this.metricas.incrementa(Metricas.DescartesSinSesion);
+            return false;
+        }
+
+        int inicio = datos.position();
+        try {
+            this.solicitud.read(datos);
+        } catch (MessageFormatException ex) {
+            this.metricas.incrementa(Metricas.DescartesFormato);
+            return false;
+        } finally {
+            datos.position(inicio);
+        }
+
+        short usuario = this.solicitud.getUsuarioId();
+        if (this.cookies.comprueba(ip, puerto, usuario,
+                this.solicitud.getCookie(), ahora))
+            return true;
+
+        this.reto.set(
+                this.solicitud.getNumSecuencia(),
+                this.cookies.genera(ip, puerto, usuario, ahora)
+        );
+        this.salidaReto.clear();
+        this.reto.write(this.salidaReto);
+        this.salidaReto.flip();
+        try {
+            this.envia(this.salidaReto, new InetSocketAddress(ip, puerto));
+            this.metricas.incrementa(Metricas.RetosEnviados);
+        } catch (IOException ex) {
+            this.metricas.incrementa(Metricas.ErroresEnvio);
+            System.err.println("ERROR: " + ex.getMessage());
+        }
+
+        return false;
+    }
+
+    /**
+     * Expulsa a los servicios que llevan demasiado tiempo sin enviar paquetes,
+     * procesa los registros aplazados y, en el modo con tick, envía el estado
+     * de los mapas.
+     * Las subclases deben llamarlo al menos una vez cada getEspera()
+     * milisegundos aunque no se reciban paquetes.
+     *
+     * @param ahora Instante actual en milisegundos.
+     */
+    protected void revisaTemporizadores(final long ahora) {
+        if (this.rueda != null)
+            this.rueda.avanza(ahora, this.vencimiento);
+
+        if (this.admision != null)
+            this.admision.procesa(ahora, this.despachador);
+
+        if (this.periodoDifusion > 0 && ahora >= this.siguienteDifusion) {
+            this.despachador.difunde();
+            this.siguienteDifusion = Math.max(
+                    this.siguienteDifusion + this.periodoDifusion,
+                    ahora + 1
+            );
+        }
+    }
+
+    /**
+     * Obtiene el tiempo máximo que se puede esperar un paquete sin revisar
+     * los temporizadores.
+     *
+     * @return Tiempo en milisegundos.
+     */
+    protected int getEspera() {
+        // Los registros aplazados se revisan a menudo hasta que se vacíe
+        // la cola.
+        if (this.admision != null && this.admision.hayAplazadas())
+            return EsperaAplazados;
+        if (this.periodoDifusion > 0 && this.periodoDifusion < DuracionTick)
+            return (int)this.periodoDifusion;
+        return DuracionTick;
+    }
+
+    /**
+     * Junta una dirección IPv4 y un puerto en un número.
+     * El hash de una dirección IPv4 es la propia dirección, así que no hace
+     * falta copiarla a un vector.
+     *
+     * @param ip Dirección IP.
+     * @param puerto Puerto.
+     * @return Clave de la dirección o -1 si no es IPv4.
+     */
+    private static long getClave(final InetAddress ip, final int puerto) {
+        if (!(ip instanceof Inet4Address))
+            return -1;
+
+        return ((ip.hashCode() & 0xFFFFFFFFL) << 16) | (puerto & 0xFFFF);
+    }
+
+    /**
+     * Obtiene el instante actual en milisegundos para medir la inactividad.
+     *
+     * @return Instante actual en milisegundos.
+     */
+    protected static long getAhora() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // Se ejecuta cuando vence el plazo de inactividad de un servicio.
+    // Si ha recibido paquetes desde que se programó, se vuelve a programar.
+    private final RuedaTemporal.Vencimiento<Servicio> vencimiento =
+            new RuedaTemporal.Vencimiento<Servicio>() {
+                @Override
+                public void vence(final Servicio serv, final long ahora) {
+                    long limite = serv.getUltimoPaquete() + inactividad;
+                    if (limite > ahora) {
+                        rueda.programa(serv, limite);
+                        return;
+                    }
+
+                    InetSocketAddress addr = (InetSocketAddress)serv.getAddress();
+                    long clave = getClave(addr.getAddress(), addr.getPort());
+                    if (clave != -1)
+                        addrServicio.remove(clave);
+                    else
+                        addrServicioOtras.remove(addr);
+                    metricas.suma(Metricas.Sesiones, -1);
+                    despachador.expulsa(serv);
+                }
+            };
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola acotada de datagramas ya codificados pendientes de enviar a un
+ * cliente.
+ * Los datagramas se copian seguidos en un anillo de bytes, cada uno con una
+ * pequeña cabecera con su tamaño y si se puede descartar. Sólo añade la
+ * hebra dueña del mapa del cliente y sólo saca la hebra emisora, así que no
+ * hacen falta bloqueos: la posición del final sólo la escribe quien añade
+ * y la del principio se avanza con compareAndSet.
+ *
+ * Cuando no hay sitio, quien añade descarta los datagramas más antiguos
+ * mientras se puedan descartar, que son los de posiciones: llegará otro más
+ * nuevo. Los demás no se descartan nunca; si no caben, anade devuelve falso
+ * y quien añade espera a que la hebra emisora haga sitio, de forma que se
+ * siguen enviando en orden. El anillo tiene sitio al menos para el mayor
+ * datagrama, así que siempre acaba cabiendo. La hebra emisora copia cada
+ * datagrama antes de avanzar el principio, de forma que si mientras tanto
+ * se ha descartado, el compareAndSet falla y no se envía una copia a medias.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class ColaSalida {
+    // Cabecera de cada datagrama: dos bytes de tamaño y uno de opciones.
+    private static final int TamCabecera = 3;
+    private static final int Descartable = 1;
+
+    private final byte[] anillo;
+    private final int mascara;
+
+    // Posiciones absolutas del primer byte pendiente y del siguiente libre.
+    private final AtomicLong principio = new AtomicLong();
+    private volatile long fin;
+
+    // Si el servicio ya está en la lista de la hebra emisora.
+    private final AtomicBoolean programada = new AtomicBoolean();
+
+    // Métricas en las que se cuentan los datagramas descartados.
+    private final Metricas metricas;
+
+    /**
+     * Crea una cola vacía.
+     *
+     * @param capacidad Tamaño mínimo del anillo en bytes. Se redondea a la
+     * siguiente potencia de dos y nunca es menor que el mayor datagrama.
+     * @param metricas Métricas del servidor.
+     */
+    public ColaSalida(final int capacidad, final Metricas metricas) {
+        int minimo = Math.max(capacidad, TamCabecera + Mensaje.GetMaxMsgSize());
+        int tam = Integer.highestOneBit(minimo - 1) << 1;
+        this.anillo = new byte[tam];
+        this.mascara = tam - 1;
+        this.metricas = metricas;
+    }
+
+    /**
+     * Añade un datagrama al final de la cola.
+     * Sólo lo puede llamar la hebra dueña del mapa del cliente.
+     *
+     * @param datos Buffer con el datagrama entre su posición y su límite.
+     * No se modifica su posición.
+     * @param descartable Si se puede descartar porque llegará otro más nuevo.
+     * @return Falso si no se ha añadido. Si era descartable se ha descartado,
+     * si no, se debe volver a intentar cuando la hebra emisora haga sitio.
+     */
+    public boolean anade(final ByteBuffer datos, final boolean descartable) {
+        int longitud = datos.remaining();
+        int necesario = TamCabecera + longitud;
+        if (necesario > this.anillo.length)
+            return this.descarta(descartable);
+
+        // Hace sitio quitando los más antiguos que se pueden descartar.
+        long actual = this.fin;
+        long inicio;
+        while (actual - (inicio = this.principio.get()) + necesario
+                > this.anillo.length) {
+            if ((this.anillo[(int)(inicio + 2) & this.mascara] & Descartable) == 0)
+                return this.descarta(descartable);
+
+            long siguiente = inicio + TamCabecera + this.getLongitud(inicio);
+            if (this.principio.compareAndSet(inicio, siguiente))
+                this.metricas.incrementa(Metricas.DescartesSalida);
+        }
+
+        this.anillo[(int)actual & this.mascara] = (byte)(longitud >>> 8);
+        this.anillo[(int)(actual + 1) & this.mascara] = (byte)longitud;
+        this.anillo[(int)(actual + 2) & this.mascara] =
+                (byte)(descartable ? Descartable : 0);
+        this.copiaEntrada(actual + TamCabecera, datos, longitud);
+
+        // La escritura volátil publica los bytes a la hebra emisora.
+        this.fin = actual + necesario;
+        return true;
+    }
+
+    /**
+     * Saca el primer datagrama de la cola.
+     * Sólo lo puede llamar la hebra emisora.
+     *
+     * @param destino Buffer en el que se copia el datagrama. Se limpia y
+     * queda listo para leer.
+     * @return Falso si la cola está vacía.
+     */
+    public boolean saca(final ByteBuffer destino) {
+        while (true) {
+            long inicio = this.principio.get();
+            if (inicio == this.fin)
+                return false;
+
+            // Si mientras se copia se descarta, los datos pueden estar
+            // a medias, pero entonces el compareAndSet falla. Hasta entonces
+            // el tamaño puede ser cualquier cosa, así que se acota.
+            int longitud = Math.min(this.getLongitud(inicio), Math.min(
+                    destino.capacity(), this.anillo.length - TamCabecera));
+            destino.clear();
+            this.copiaSalida(inicio + TamCabecera, destino, longitud);
+            destino.flip();
+
+            if (this.principio.compareAndSet(inicio,
+                    inicio + TamCabecera + longitud))
+                return true;
+        }
+    }
+
+    /**
+     * Marca la cola como pendiente de la hebra emisora.
+     *
+     * @return Verdadero si no lo estaba y hay que avisar a la hebra.
+     */
+    public boolean programa() {
+        return this.programada.compareAndSet(false, true);
+    }
+
+    /**
+     * Quita la marca de pendiente. La hebra emisora la quita antes de vaciar
+     * la cola, así que lo que se añada después la vuelve a programar.
+     */
+    public void desprograma() {
+        this.programada.set(false);
+    }
+
+    /**
+     * Cuenta un datagrama que no cabe.
+     *
+     * @param descartable Si se podía descartar.
+     * @return Siempre falso.
+     */
+    private boolean descarta(final boolean descartable) {
+        if (descartable)
+            this.metricas.incrementa(Metricas.DescartesSalida);
+        return false;
+    }
+
+    /**
+     * Lee el tamaño del datagrama que empieza en una posición.
+     *
+     * @param posicion Posición absoluta de la cabecera.
+     * @return Tamaño del datagrama sin la cabecera.
+     */
+    private int getLongitud(final long posicion) {
+        return ((this.anillo[(int)posicion & this.mascara] & 0xFF) << 8)
+                | (this.anillo[(int)(posicion + 1) & this.mascara] & 0xFF);
+    }
+
+    /**
+     * Copia datos al anillo, dando la vuelta si llega al final.
+     *
+     * @param posicion Posición absoluta de destino.
+     * @param datos Buffer de origen. No se modifica su posición.
+     * @param longitud Número de bytes.
+     */
+    private void copiaEntrada(final long posicion, final ByteBuffer datos,
+            final int longitud) {
+        int idx = (int)posicion & this.mascara;
+        int primera = Math.min(longitud, this.anillo.length - idx);
+        int origen = datos.position();
+        for (int i = 0; i < primera; i++)
+            this.anillo[idx + i] = datos.get(origen + i);
+        for (int i = primera; i < longitud; i++)
+            this.anillo[i - primera] = datos.get(origen + i);
+    }
+
+    /**
+     * Copia datos del anillo a un buffer, dando la vuelta si llega al final.
+     *
+     * @param posicion Posición absoluta de origen.
+     * @param destino Buffer de destino.
+     * @param longitud Número de bytes.
+     */
+    private void copiaSalida(final long posicion, final ByteBuffer destino,
+            final int longitud) {
+        int idx = (int)posicion & this.mascara;
+        int primera = Math.min(longitud, this.anillo.length - idx);
+        destino.put(this.anillo, idx, primera);
+        destino.put(this.anillo, 0, longitud - primera);
+    }
+}
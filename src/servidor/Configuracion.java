@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opciones de configuración del servidor.
+ * Se pasan por la línea de comandos después del puerto con la forma
+ * clave=valor.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Configuracion {
+    private final Map<String, String> valores = new HashMap<>();
+
+    /**
+     * Crea una configuración vacía con todos los valores por defecto.
+     */
+    public Configuracion() {
+    }
+
+    /**
+     * Crea una configuración a partir de los argumentos del programa.
+     *
+     * @param args Argumentos del programa.
+     * @param inicio Índice del primer argumento con opciones.
+     * @return Configuración leída.
+     * @throws IllegalArgumentException Si algún argumento no es clave=valor.
+     */
+    public static Configuracion FromArgs(final String[] args, final int inicio) {
+        Configuracion config = new Configuracion();
+        for (int i = inicio; i < args.length; i++) {
+            int separador = args[i].indexOf('=');
+            if (separador <= 0)
+                throw new IllegalArgumentException("Opción inválida: " + args[i]);
+
+            config.valores.put(
+                    args[i].substring(0, separador),
+                    args[i].substring(separador + 1)
+            );
+        }
+
+        return config;
+    }
+
+    /**
+     * Obtiene el valor de una opción como texto.
+     *
+     * @param clave Nombre de la opción.
+     * @param defecto Valor si no se ha especificado.
+     * @return Valor de la opción.
+     */
+    public String getCadena(final String clave, final String defecto) {
+        String valor = this.valores.get(clave);
+        return (valor != null) ? valor : defecto;
+    }
+
+    /**
+     * Obtiene el valor de una opción como número entero.
+     *
+     * @param clave Nombre de la opción.
+     * @param defecto Valor si no se ha especificado.
+     * @return Valor de la opción.
+     * @throws IllegalArgumentException Si el valor no es un número.
+     */
+    public int getEntero(final String clave, final int defecto) {
+        String valor = this.valores.get(clave);
+        if (valor == null)
+            return defecto;
+
+        try {
+            return Integer.parseInt(valor);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(
+                    "Valor inválido para " + clave + ": " + valor, ex);
+        }
+    }
+
+    /**
+     * Obtiene el valor de una opción como booleano.
+     *
+     * @param clave Nombre de la opción.
+     * @param defecto Valor si no se ha especificado.
+     * @return Valor de la opción.
+     */
+    public boolean getBooleano(final String clave, final boolean defecto) {
+        String valor = this.valores.get(clave);
+        return (valor != null) ? Boolean.parseBoolean(valor) : defecto;
+    }
+}
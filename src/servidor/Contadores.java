@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Grupo de contadores que se pueden incrementar desde varias hebras sin
+ * bloqueos ni competir por la misma línea de caché.
+ * Cada hebra suma en su propia franja según su ID y al leer se suman todas
+ * las franjas, así que la lectura es más lenta pero no bloquea a nadie.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Contadores {
+    // Número de franjas, potencia de dos, y contadores por línea de caché.
+    private static final int Franjas = 8;
+    private static final int PorLinea = 8;
+
+    private final AtomicLongArray valores;
+    private final int numContadores;
+
+    // Distancia entre el mismo contador de dos franjas. Tiene una línea de
+    // más para que las franjas vecinas no la compartan.
+    private final int paso;
+
+    /**
+     * Crea los contadores a cero.
+     *
+     * @param numContadores Número de contadores.
+     */
+    public Contadores(final int numContadores) {
+        this.numContadores = numContadores;
+        this.paso = ((numContadores + PorLinea - 1) / PorLinea + 1) * PorLinea;
+        this.valores = new AtomicLongArray(Franjas * this.paso);
+    }
+
+    /**
+     * Obtiene el número de contadores.
+     *
+     * @return Número de contadores.
+     */
+    public int getNumContadores() {
+        return this.numContadores;
+    }
+
+    /**
+     * Suma una cantidad a un contador.
+     *
+     * @param indice Índice del contador.
+     * @param cantidad Cantidad a sumar, que puede ser negativa.
+     */
+    public void suma(final int indice, final long cantidad) {
+        this.valores.getAndAdd(getFranja() * this.paso + indice, cantidad);
+    }
+
+    /**
+     * Suma uno a un contador.
+     *
+     * @param indice Índice del contador.
+     */
+    public void incrementa(final int indice) {
+        this.valores.getAndIncrement(getFranja() * this.paso + indice);
+    }
+
+    /**
+     * Obtiene el valor de un contador sumando todas las franjas.
+     *
+     * @param indice Índice del contador.
+     * @return Valor del contador.
+     */
+    public long get(final int indice) {
+        long total = 0;
+        for (int i = 0; i < Franjas; i++)
+            total += this.valores.get(i * this.paso + indice);
+        return total;
+    }
+
+    /**
+     * Obtiene la franja de la hebra actual.
+     *
+     * @return Índice de la franja.
+     */
+    private static int getFranja() {
+        return (int)Thread.currentThread().getId() & (Franjas - 1);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Actualizacion;
+import comun.Confirmacion;
+import comun.Decodificador;
+import comun.Lote;
+import comun.Mensaje;
+import comun.RegistroCorrecto;
+import comun.RegistroIncorrecto;
+import comun.SalidaVista;
+import java.nio.ByteBuffer;
+
+/**
+ * Objetos reutilizables de una hebra que procesa paquetes.
+ * Los servicios los usan para decodificar y codificar mensajes sin reservar
+ * memoria. Cada hebra tiene su propia instancia y no se comparte.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class ContextoHebra {
+    private final Decodificador decodificador = new Decodificador();
+    private final ByteBuffer salida = ByteBuffer.allocate(Mensaje.GetMaxMsgSize());
+
+    // Mensajes de respuesta que se rellenan antes de cada envío.
+    private final Confirmacion confirmacion = new Confirmacion();
+    private final RegistroCorrecto registroCorrecto = new RegistroCorrecto();
+    private final RegistroIncorrecto registroIncorrecto = new RegistroIncorrecto();
+
+    // Actualización en la que se reconstruyen las deltas recibidas.
+    private final Actualizacion actualizacion = new Actualizacion();
+
+    // Mensajes con los personajes que entran y salen de la vista.
+    private final Lote lote = new Lote();
+    private final SalidaVista salidaVista = new SalidaVista();
+
+    /**
+     * Obtiene el decodificador de mensajes recibidos.
+     *
+     * @return Decodificador de la hebra.
+     */
+    public Decodificador getDecodificador() {
+        return this.decodificador;
+    }
+
+    /**
+     * Obtiene el buffer en el que codificar los mensajes a enviar.
+     *
+     * @return Buffer de salida de la hebra.
+     */
+    public ByteBuffer getSalida() {
+        return this.salida;
+    }
+
+    /**
+     * Obtiene el mensaje de confirmación reutilizable.
+     *
+     * @return Mensaje de confirmación.
+     */
+    public Confirmacion getConfirmacion() {
+        return this.confirmacion;
+    }
+
+    /**
+     * Obtiene el mensaje de registro correcto reutilizable.
+     *
+     * @return Mensaje de registro correcto.
+     */
+    public RegistroCorrecto getRegistroCorrecto() {
+        return this.registroCorrecto;
+    }
+
+    /**
+     * Obtiene el mensaje de registro incorrecto reutilizable.
+     *
+     * @return Mensaje de registro incorrecto.
+     */
+    public RegistroIncorrecto getRegistroIncorrecto() {
+        return this.registroIncorrecto;
+    }
+
+    /**
+     * Obtiene la actualización reutilizable para reconstruir las deltas.
+     *
+     * @return Mensaje de actualización.
+     */
+    public Actualizacion getActualizacion() {
+        return this.actualizacion;
+    }
+
+    /**
+     * Obtiene el lote reutilizable para enviar los personajes que entran
+     * en la vista de un jugador.
+     *
+     * @return Mensaje de lote.
+     */
+    public Lote getLote() {
+        return this.lote;
+    }
+
+    /**
+     * Obtiene el mensaje reutilizable con los personajes que salen de la
+     * vista de un jugador.
+     *
+     * @return Mensaje de salida de la vista.
+     */
+    public SalidaVista getSalidaVista() {
+        return this.salidaVista;
+    }
+}
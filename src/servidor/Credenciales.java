@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Crc16;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Usuarios y contraseñas admitidos en el servidor.
+ * Se leen una sola vez al arrancar y los comparten todos los servicios.
+ * Como los ID de usuario son de 16 bits, la contraseña (CRC16) de cada uno
+ * se guarda en la posición de su ID de una tabla de enteros, así que buscar
+ * no reserva memoria. Después de leerla no se modifica, por lo que se puede
+ * consultar desde cualquier hebra.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Credenciales {
+    // Valor de los usuarios que no existen.
+    private static final int SinUsuario = -1;
+
+    // Contraseña de cada ID de usuario o SinUsuario.
+    private final int[] contrasenias = new int[1 << 16];
+    private int numUsuarios;
+
+    /**
+     * Crea una tabla de credenciales sin ningún usuario.
+     */
+    public Credenciales() {
+        Arrays.fill(this.contrasenias, SinUsuario);
+    }
+
+    /**
+     * Lee las credenciales de un fichero de texto.
+     * Cada línea tiene el ID del usuario en hexadecimal y su contraseña en
+     * texto plano separados por espacios. Se ignoran las líneas vacías y las
+     * que empiezan por '#'.
+     *
+     * @param ruta Ruta del fichero.
+     * @return Credenciales leídas.
+     * @throws IOException Si no se puede leer el fichero o alguna línea
+     * no tiene el formato correcto.
+     */
+    public static Credenciales FromFile(final String ruta) throws IOException {
+        Credenciales credenciales = new Credenciales();
+        try (BufferedReader lector = new BufferedReader(new FileReader(ruta))) {
+            String linea;
+            int numLinea = 0;
+            while ((linea = lector.readLine()) != null) {
+                numLinea++;
+                linea = linea.trim();
+                if (linea.isEmpty() || linea.startsWith("#"))
+                    continue;
+
+                String[] campos = linea.split("\\s+", 2);
+                if (campos.length != 2)
+                    throw new IOException(ruta + ":" + numLinea
+                            + ": falta la contraseña");
+
+                short usuario;
+                try {
+                    usuario = (short)Integer.parseInt(campos[0], 16);
+                } catch (NumberFormatException ex) {
+                    throw new IOException(ruta + ":" + numLinea
+                            + ": ID de usuario inválido: " + campos[0], ex);
+                }
+
+                // El cliente envía el CRC16 de la contraseña.
+                credenciales.anade(usuario,
+                        Crc16.calculate(campos[1].getBytes()));
+            }
+        }
+
+        return credenciales;
+    }
+
+    /**
+     * Añade un usuario o cambia su contraseña.
+     *
+     * @param usuario ID del usuario.
+     * @param contrasenia CRC16 de la contraseña.
+     */
+    public void anade(final short usuario, final short contrasenia) {
+        int idx = usuario & 0xFFFF;
+        if (this.contrasenias[idx] == SinUsuario)
+            this.numUsuarios++;
+        this.contrasenias[idx] = contrasenia & 0xFFFF;
+    }
+
+    /**
+     * Comprueba si un usuario existe y su contraseña es correcta.
+     *
+     * @param usuario ID del usuario.
+     * @param contrasenia CRC16 de la contraseña.
+     * @return Verdadero si se le permite entrar.
+     */
+    public boolean comprueba(final short usuario, final short contrasenia) {
+        return this.contrasenias[usuario & 0xFFFF] == (contrasenia & 0xFFFF);
+    }
+
+    /**
+     * Obtiene el número de usuarios admitidos.
+     *
+     * @return Número de usuarios.
+     */
+    public int getNumUsuarios() {
+        return this.numUsuarios;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+/**
+ * Cubo de fichas para limitar la frecuencia de los paquetes.
+ * Se llena a un ritmo fijo hasta el máximo de un segundo y cada paquete
+ * gasta una ficha, así que admite ráfagas cortas pero no más paquetes por
+ * segundo de los indicados. Las fichas se cuentan en milésimas para no
+ * perder los restos entre milisegundos. No es seguro entre hebras: lo usa
+ * sólo la hebra dueña de lo que limita.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class CuboFichas {
+    private static final long Ficha = 1000;
+
+    private final long maximo;
+    private final long porMilisegundo;
+
+    private long fichas;
+    private long ultimo;
+
+    /**
+     * Crea un cubo lleno.
+     *
+     * @param porSegundo Fichas que se añaden cada segundo.
+     */
+    public CuboFichas(final int porSegundo) {
+        // Una ficha por segundo son Ficha milésimas cada 1000 milisegundos.
+        this.porMilisegundo = porSegundo;
+        this.maximo = Math.max(porSegundo, 1) * Ficha;
+        this.fichas = this.maximo;
+    }
+
+    /**
+     * Gasta una ficha si la hay.
+     *
+     * @param ahora Instante actual en milisegundos.
+     * @return Verdadero si se ha gastado, falso si el cubo está vacío.
+     */
+    public boolean gasta(final long ahora) {
+        if (!this.hay(ahora))
+            return false;
+
+        this.fichas -= Ficha;
+        return true;
+    }
+
+    /**
+     * Comprueba si queda alguna ficha, sin gastarla.
+     *
+     * @param ahora Instante actual en milisegundos.
+     * @return Verdadero si queda al menos una ficha.
+     */
+    public boolean hay(final long ahora) {
+        if (ahora > this.ultimo) {
+            this.fichas = Math.min(this.maximo,
+                    this.fichas + (ahora - this.ultimo) * this.porMilisegundo);
+            this.ultimo = ahora;
+        }
+
+        return this.fichas >= Ficha;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decide en qué hebra se procesan los paquetes de cada servicio.
+ * También se encarga de mantener la lista de jugadores de cada mapa que
+ * usan los servicios para enviarse las actualizaciones.
+ *
+ * @author Benito Palacios Sánchez
+ */
+interface Despachador {
+    /**
+     * Comienza las hebras necesarias para procesar los paquetes.
+     */
+    void comenzar();
+
+    /**
+     * Entrega un paquete recibido para que su servicio lo procese.
+     * Se llama siempre desde la hebra que recibe los paquetes.
+     * El buffer se puede reutilizar en cuanto este método devuelva.
+     *
+     * @param serv Servicio al que pertenece el paquete.
+     * @param datos Buffer con los datos recibidos entre su posición y límite.
+     */
+    void entrega(Servicio serv, ByteBuffer datos);
+
+    /**
+     * Añade un servicio a la lista de jugadores de un mapa.
+     * Se llama desde la hebra que recibe los paquetes al registrarse.
+     *
+     * @param serv Servicio que se une al mapa.
+     * @param mapaId ID del mapa.
+     */
+    void unirse(Servicio serv, short mapaId);
+
+    /**
+     * Elimina un servicio de la lista de jugadores de su mapa.
+     * Se llama desde la hebra que procesa los paquetes del servicio.
+     * Después el servicio olvida su mapa y su siguiente registro le asigna
+     * uno nuevo.
+     *
+     * @param serv Servicio que abandona el mapa.
+     */
+    void abandona(Servicio serv);
+
+    /**
+     * Expulsa de su mapa a un servicio que ha dejado de enviar paquetes.
+     * Se llama desde la hebra que recibe los paquetes cuando ya no se le
+     * van a entregar más paquetes de este servicio.
+     *
+     * @param serv Servicio inactivo.
+     */
+    void expulsa(Servicio serv);
+
+    /**
+     * Envía el estado de los mapas que han cambiado en el modo con tick
+     * y los lotes de actualizaciones pendientes.
+     * Se llama desde la hebra que recibe los paquetes una vez por periodo.
+     */
+    void difunde();
+}
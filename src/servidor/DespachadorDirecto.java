@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Despachador que procesa todos los paquetes en la hebra que los recibe.
+ * Como todo ocurre en la misma hebra, avisa al asignador en cuanto un
+ * jugador deja su mapa.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class DespachadorDirecto implements Despachador {
+    private final AsignadorMapas asignador;
+    private final ContextoHebra contexto = new ContextoHebra();
+
+    // Lista de servicios de cada mapa.
+    private final TablaLong<List<Servicio>> mapas = new TablaLong<>();
+
+    // Estado de cada mapa.
+    private final TablaLong<EstadoMapa> mundos = new TablaLong<>();
+    private final boolean conTick;
+    private final int vision;
+    private final GruposMulticast grupos;
+    private final LimitesCarga limites;
+    private final Metricas metricas;
+
+    /**
+     * Crea una nueva instancia del despachador.
+     *
+     * @param asignador Asignador de los mapas.
+     * @param conTick Si el estado de los mapas se envía en cada tick.
+     * @param vision Distancia en celdas a la que se ven los personajes o 0
+     * para todo el mapa.
+     * @param grupos Grupos multicast de los mapas o null para unicast.
+     * @param limites Límites de paquetes por segundo de los mapas.
+     * @param metricas Métricas del servidor.
+     */
+    public DespachadorDirecto(final AsignadorMapas asignador,
+            final boolean conTick, final int vision,
+            final GruposMulticast grupos, final LimitesCarga limites,
+            final Metricas metricas) {
+        this.asignador = asignador;
+        this.conTick = conTick;
+        this.vision = vision;
+        this.grupos = grupos;
+        this.limites = limites;
+        this.metricas = metricas;
+    }
+
+    @Override
+    public void comenzar() {
+    }
+
+    @Override
+    public void entrega(final Servicio serv, final ByteBuffer datos) {
+        serv.recibe(datos, this.contexto);
+    }
+
+    @Override
+    public void unirse(final Servicio serv, final short mapaId) {
+        List<Servicio> lista = this.mapas.get(mapaId);
+        if (lista == null) {
+            lista = new ArrayList<>();
+            this.mapas.put(mapaId, lista);
+        }
+
+        lista.add(serv);
+        serv.setVecinos(lista);
+
+        EstadoMapa mundo = this.mundos.get(mapaId);
+        if (mundo == null) {
+            mundo = new EstadoMapa(this.conTick, this.vision, this.grupos,
+                    mapaId, this.limites, this.metricas);
+            this.mundos.put(mapaId, mundo);
+            this.metricas.incrementa(Metricas.Mapas);
+        }
+        serv.setMundo(mundo);
+    }
+
+    @Override
+    public void abandona(final Servicio serv) {
+        serv.getVecinos().remove(serv);
+        if (this.asignador.quita(serv))
+            this.destruye(serv.getMapaId());
+
+        serv.setVecinos(null);
+        serv.setMundo(null);
+        serv.olvidaMapa();
+    }
+
+    @Override
+    public void expulsa(final Servicio serv) {
+        serv.desconecta(this.contexto);
+        if (this.asignador.quita(serv))
+            this.destruye(serv.getMapaId());
+    }
+
+    @Override
+    public void difunde() {
+        for (int i = 0; i < this.mundos.getNumHuecos(); i++) {
+            EstadoMapa mundo = this.mundos.getHueco(i);
+            if (mundo != null)
+                mundo.difunde(this.contexto);
+        }
+
+        for (int i = 0; i < this.mapas.getNumHuecos(); i++) {
+            List<Servicio> lista = this.mapas.getHueco(i);
+            if (lista == null)
+                continue;
+
+            for (Servicio serv : lista)
+                serv.vaciaLote();
+        }
+    }
+
+    /**
+     * Libera la lista y el estado de un mapa que se ha quedado vacío.
+     *
+     * @param mapaId ID del mapa.
+     */
+    private void destruye(final short mapaId) {
+        this.mapas.remove(mapaId);
+        if (this.mundos.remove(mapaId) != null)
+            this.metricas.suma(Metricas.Mapas, -1);
+    }
+}
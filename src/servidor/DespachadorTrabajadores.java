@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Despachador que reparte los mapas entre varias hebras trabajadoras.
+ * Cada trabajador es el único dueño de los servicios de sus mapas, por lo que
+ * las actualizaciones y sus retransmisiones se procesan sin bloqueos.
+ * La hebra que recibe los paquetes procesa los registros, ya que es la única
+ * que usa el asignador de mapas, y le pasa el resto de paquetes
+ * a cada trabajador a través de una cola acotada.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class DespachadorTrabajadores implements Despachador {
+    // Asignador de los mapas. Sólo lo usa la hebra que recibe.
+    private final AsignadorMapas asignador;
+
+    // Servicios que han abandonado su mapa y que todavía hay que quitar
+    // del asignador.
+    private final Queue<Servicio> salidas = new ConcurrentLinkedQueue<>();
+
+    // Objetos reutilizables de la hebra que recibe, para los registros.
+    private final ContextoHebra contexto = new ContextoHebra();
+
+    private final Trabajador[] trabajadores;
+    private final Metricas metricas;
+
+    /**
+     * Crea una nueva instancia del despachador.
+     *
+     * @param numTrabajadores Número de hebras trabajadoras.
+     * @param capacidad Número máximo de paquetes en la cola de cada trabajador.
+     * @param asignador Asignador de los mapas.
+     * @param periodo Milisegundos entre cada envío del estado de los mapas
+     * y de los lotes, o 0 para reenviar las actualizaciones al momento.
+     * @param conTick Si el estado de los mapas se envía en cada tick.
+     * @param vision Distancia en celdas a la que se ven los personajes o 0
+     * para todo el mapa.
+     * @param grupos Grupos multicast de los mapas o null para unicast.
+     * @param limites Límites de paquetes por segundo de los mapas.
+     * @param metricas Métricas del servidor.
+     */
+    public DespachadorTrabajadores(final int numTrabajadores,
+            final int capacidad, final AsignadorMapas asignador,
+            final long periodo, final boolean conTick, final int vision,
+            final GruposMulticast grupos, final LimitesCarga limites,
+            final Metricas metricas) {
+        this.asignador = asignador;
+        this.metricas = metricas;
+        this.trabajadores = new Trabajador[numTrabajadores];
+        for (int i = 0; i < numTrabajadores; i++)
+            this.trabajadores[i] = new Trabajador(i, capacidad, periodo, conTick,
+                    vision, grupos, limites, metricas);
+    }
+
+    @Override
+    public void comenzar() {
+        for (Trabajador trabajador : this.trabajadores)
+            trabajador.start();
+    }
+
+    @Override
+    public void entrega(final Servicio serv, final ByteBuffer datos) {
+        // Antes de mirar su mapa, por si lo acaba de abandonar.
+        this.procesaSalidas();
+        if (serv.getMapaId() == -1) {
+            // Todavía no tiene mapa, así que lo procesamos aquí por si
+            // se trata de un registro.
+            serv.recibe(datos, this.contexto);
+        } else {
+            // Si la cola está llena el paquete se descarta, igual que haría
+            // la red con cualquier paquete UDP.
+            if (!this.getTrabajador(serv.getMapaId()).encola(serv, datos))
+                this.metricas.incrementa(Metricas.DescartesTrabajador);
+        }
+    }
+
+    @Override
+    public void unirse(final Servicio serv, final short mapaId) {
+        this.getTrabajador(mapaId).encolaControl(TipoTrabajo.UNION, serv, mapaId);
+    }
+
+    @Override
+    public void abandona(final Servicio serv) {
+        // La lista y el estado son de esta hebra, pero el ID del mapa lo
+        // lee la que recibe, así que lo olvida ella al procesar la salida.
+        serv.getVecinos().remove(serv);
+        serv.setVecinos(null);
+        serv.setMundo(null);
+        this.salidas.offer(serv);
+    }
+
+    @Override
+    public void expulsa(final Servicio serv) {
+        this.procesaSalidas();
+        if (serv.getMapaId() == -1)
+            return;
+
+        Trabajador trabajador = this.getTrabajador(serv.getMapaId());
+        trabajador.encolaControl(TipoTrabajo.EXPULSION, serv, serv.getMapaId());
+        if (this.asignador.quita(serv))
+            trabajador.encolaControl(TipoTrabajo.DESTRUCCION, null,
+                    serv.getMapaId());
+    }
+
+    @Override
+    public void difunde() {
+        // Cada trabajador lleva su propio periodo para no tener que
+        // sincronizarse con esta hebra.
+    }
+
+    /**
+     * Quita del asignador los servicios que abandonaron su mapa y olvida
+     * su mapa, para que sus paquetes se vuelvan a procesar en esta hebra.
+     * Los mapas que se quedan vacíos se destruyen en su trabajador antes
+     * de que se pueda volver a usar su ID, ya que la cola mantiene el orden.
+     */
+    private void procesaSalidas() {
+        Servicio serv;
+        while ((serv = this.salidas.poll()) != null) {
+            if (this.asignador.quita(serv))
+                this.getTrabajador(serv.getMapaId()).encolaControl(
+                        TipoTrabajo.DESTRUCCION, null, serv.getMapaId());
+            serv.olvidaMapa();
+        }
+    }
+
+    /**
+     * Obtiene el trabajador dueño de un mapa.
+     *
+     * @param mapaId ID del mapa.
+     * @return Trabajador del mapa.
+     */
+    private Trabajador getTrabajador(final short mapaId) {
+        return this.trabajadores[(mapaId & 0xFFFF) % this.trabajadores.length];
+    }
+
+    /**
+     * Tipos de trabajos que puede tener un trabajador.
+     */
+    private enum TipoTrabajo {
+        PAQUETE,
+        UNION,
+        EXPULSION,
+        DESTRUCCION
+    }
+
+    /**
+     * Trabajo pendiente de un trabajador.
+     * Puede ser un paquete recibido, la unión de un servicio a un mapa,
+     * su expulsión por inactividad o la destrucción de un mapa vacío.
+     * Las instancias se reutilizan para no reservar memoria por paquete.
+     */
+    private static class Trabajo {
+        private final ByteBuffer datos = ByteBuffer.allocate(Mensaje.GetMaxMsgSize());
+        private TipoTrabajo tipo;
+        private Servicio serv;
+        private short mapaId = -1;
+
+        // Instante en nanosegundos en el que se encoló el paquete.
+        private long encolado;
+    }
+
+    /**
+     * Hebra que procesa los paquetes de los servicios de sus mapas.
+     */
+    private static class Trabajador extends Thread {
+        private final BlockingQueue<Trabajo> cola;
+        private final BlockingQueue<Trabajo> libres;
+        private final ContextoHebra contexto = new ContextoHebra();
+
+        // Lista de servicios de los mapas de este trabajador.
+        private final TablaLong<List<Servicio>> mapas = new TablaLong<>();
+
+        // Estado de los mapas y cada cuánto se envía, en el modo con tick,
+        // junto con los lotes.
+        private final TablaLong<EstadoMapa> mundos = new TablaLong<>();
+        private final long periodo;
+        private final boolean conTick;
+        private final int vision;
+        private final GruposMulticast grupos;
+        private final LimitesCarga limites;
+        private final Metricas metricas;
+
+        /**
+         * Crea una nueva instancia del trabajador.
+         *
+         * @param indice Número del trabajador.
+         * @param capacidad Tamaño de la cola de trabajos.
+         * @param periodo Milisegundos entre cada envío del estado o 0.
+         * @param conTick Si el estado de los mapas se envía en cada tick.
+         * @param vision Distancia en celdas a la que se ven los personajes.
+         * @param grupos Grupos multicast de los mapas o null.
+         * @param limites Límites de paquetes por segundo de los mapas.
+         * @param metricas Métricas del servidor.
+         */
+        public Trabajador(final int indice, final int capacidad,
+                final long periodo, final boolean conTick, final int vision,
+                final GruposMulticast grupos, final LimitesCarga limites,
+                final Metricas metricas) {
+            super("Trabajador-" + indice);
+            this.setDaemon(true);
+            this.periodo = periodo;
+            this.conTick = conTick;
+            this.vision = vision;
+            this.grupos = grupos;
+            this.limites = limites;
+            this.metricas = metricas;
+
+            this.cola   = new ArrayBlockingQueue<>(capacidad);
+            this.libres = new ArrayBlockingQueue<>(capacidad);
+            for (int i = 0; i < capacidad; i++)
+                this.libres.offer(new Trabajo());
+        }
+
+        /**
+         * Encola un paquete recibido.
+         *
+         * @param serv Servicio al que pertenece el paquete.
+         * @param datos Buffer con los datos recibidos.
+         * @return Falso si la cola estaba llena y se ha descartado.
+         */
+        public boolean encola(final Servicio serv, final ByteBuffer datos) {
+            Trabajo trabajo = this.libres.poll();
+            if (trabajo == null)
+                return false;
+
+            trabajo.datos.clear();
+            trabajo.datos.put(datos);
+            trabajo.datos.flip();
+            trabajo.tipo   = TipoTrabajo.PAQUETE;
+            trabajo.serv   = serv;
+            trabajo.mapaId = -1;
+            trabajo.encolado = System.nanoTime();
+            return this.cola.offer(trabajo);
+        }
+
+        /**
+         * Encola la unión de un servicio a un mapa, su expulsión o la
+         * destrucción de un mapa.
+         * A diferencia de los paquetes, no se descarta nunca, sino que espera
+         * a que haya hueco en la cola.
+         *
+         * @param tipo Tipo de trabajo.
+         * @param serv Servicio que se une o se expulsa, o null.
+         * @param mapaId ID del mapa.
+         */
+        public void encolaControl(final TipoTrabajo tipo, final Servicio serv,
+                final short mapaId) {
+            try {
+                Trabajo trabajo = this.libres.take();
+                trabajo.tipo   = tipo;
+                trabajo.serv   = serv;
+                trabajo.mapaId = mapaId;
+                this.cola.put(trabajo);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            long siguiente = BucleServidor.getAhora() + this.periodo;
+            try {
+                while (true) {
+                    // Con tick o con lotes no se espera más allá del
+                    // siguiente envío.
+                    Trabajo trabajo;
+                    if (this.periodo > 0) {
+                        long ahora = BucleServidor.getAhora();
+                        if (ahora >= siguiente) {
+                            this.difunde();
+                            siguiente = Math.max(siguiente + this.periodo,
+                                    ahora + 1);
+                        }
+
+                        trabajo = this.cola.poll(siguiente - ahora,
+                                TimeUnit.MILLISECONDS);
+                        if (trabajo == null)
+                            continue;
+                    } else {
+                        trabajo = this.cola.take();
+                    }
+
+                    switch (trabajo.tipo) {
+                        case PAQUETE:
+                            this.metricas.getDespacho().anota(
+                                    System.nanoTime() - trabajo.encolado);
+                            trabajo.serv.recibe(trabajo.datos, this.contexto);
+                            break;
+
+                        case UNION:
+                            this.une(trabajo.serv, trabajo.mapaId);
+                            break;
+
+                        case EXPULSION:
+                            trabajo.serv.desconecta(this.contexto);
+                            break;
+
+                        case DESTRUCCION:
+                            this.mapas.remove(trabajo.mapaId);
+                            if (this.mundos.remove(trabajo.mapaId) != null)
+                                this.metricas.suma(Metricas.Mapas, -1);
+                            break;
+                    }
+
+                    trabajo.serv = null;
+                    this.libres.offer(trabajo);
+                }
+            } catch (InterruptedException ex) {
+                System.err.println(this.getName() + " interrumpido.");
+            }
+        }
+
+        /**
+         * Envía el estado de los mapas que han cambiado y los lotes
+         * pendientes de los servicios de este trabajador.
+         */
+        private void difunde() {
+            for (int i = 0; i < this.mundos.getNumHuecos(); i++) {
+                EstadoMapa mundo = this.mundos.getHueco(i);
+                if (mundo != null)
+                    mundo.difunde(this.contexto);
+            }
+
+            for (int i = 0; i < this.mapas.getNumHuecos(); i++) {
+                List<Servicio> lista = this.mapas.getHueco(i);
+                if (lista == null)
+                    continue;
+
+                for (Servicio serv : lista)
+                    serv.vaciaLote();
+            }
+        }
+
+        /**
+         * Añade un servicio a la lista local de su mapa.
+         *
+         * @param serv Servicio que se une.
+         * @param mapaId ID del mapa.
+         */
+        private void une(final Servicio serv, final short mapaId) {
+            List<Servicio> lista = this.mapas.get(mapaId);
+            if (lista == null) {
+                lista = new ArrayList<>();
+                this.mapas.put(mapaId, lista);
+            }
+
+            lista.add(serv);
+            serv.setVecinos(lista);
+
+            EstadoMapa mundo = this.mundos.get(mapaId);
+            if (mundo == null) {
+                mundo = new EstadoMapa(this.conTick, this.vision,
+                        this.grupos, mapaId, this.limites, this.metricas);
+                this.mundos.put(mapaId, mundo);
+                this.metricas.incrementa(Metricas.Mapas);
+            }
+            serv.setMundo(mundo);
+        }
+    }
+}
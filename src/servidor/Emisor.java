@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Hebra que envía los datagramas de las colas de salida de los servicios.
+ * Las hebras que procesan los mapas sólo copian cada datagrama a la cola del
+ * cliente y avisan a esta hebra, así que una difusión a muchos jugadores no
+ * retrasa la recepción de los siguientes paquetes. En cada despertar se
+ * recogen todos los servicios con datos pendientes y se vacían sus colas
+ * de una vez.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Emisor extends Thread {
+    // Máximo de servicios que se vacían en cada despertar.
+    private static final int MaxServicios = 256;
+
+    // Servicios con datagramas pendientes. Cada uno está como mucho una vez.
+    private final BlockingQueue<Servicio> pendientes = new LinkedBlockingQueue<>();
+    private final List<Servicio> listos = new ArrayList<>(MaxServicios);
+
+    // Buffer en el que se copia cada datagrama antes de enviarlo.
+    private final ByteBuffer datos = ByteBuffer.allocate(Mensaje.GetMaxMsgSize());
+
+    // Tamaño en bytes de la cola de cada servicio.
+    private final int capacidad;
+    private final Metricas metricas;
+
+    /**
+     * Crea una nueva instancia de la hebra.
+     *
+     * @param capacidad Tamaño en bytes de la cola de cada servicio.
+     * @param metricas Métricas del servidor.
+     */
+    public Emisor(final int capacidad, final Metricas metricas) {
+        super("Emisor");
+        this.setDaemon(true);
+        this.capacidad = capacidad;
+        this.metricas = metricas;
+    }
+
+    /**
+     * Crea la cola de salida de un servicio.
+     *
+     * @return Cola vacía.
+     */
+    public ColaSalida creaCola() {
+        return new ColaSalida(this.capacidad, this.metricas);
+    }
+
+    /**
+     * Avisa de que un servicio tiene datagramas pendientes.
+     * Sólo se debe llamar cuando su cola no estaba ya programada.
+     *
+     * @param serv Servicio con datos en su cola.
+     */
+    public void programa(final Servicio serv) {
+        this.pendientes.offer(serv);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                this.listos.add(this.pendientes.take());
+                this.pendientes.drainTo(this.listos, MaxServicios - 1);
+
+                for (Servicio serv : this.listos)
+                    serv.vaciaSalida(this.datos);
+                this.listos.clear();
+            }
+        } catch (InterruptedException ex) {
+            System.err.println(this.getName() + " interrumpido.");
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Actualizacion;
+import comun.Lote;
+import comun.Mapa;
+import comun.SalidaVista;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Estado del mundo de un mapa.
+ * Guarda el último estado de cada personaje del mapa en un índice espacial.
+ * Cada jugador sólo recibe el estado de los personajes que tiene a la vista,
+ * a menos de un radio de celdas de su propio personaje, así que el coste de
+ * cada envío depende de los jugadores de la zona y no de los de todo el mapa.
+ * Cuando un personaje entra en la vista de un jugador se le envía su estado
+ * y cuando sale se le avisa para que lo olvide.
+ * En el modo con tick fijo las actualizaciones recibidas además no se
+ * reenvían al momento, sino que se aplican sobre el último estado de cada
+ * personaje. En cada tick se envía a los jugadores sólo el estado de los
+ * personajes que han cambiado, de forma que el tráfico depende del tick y
+ * no de lo rápido que envíen los clientes.
+ * Si el mapa tiene un grupo multicast, cada estado se envía una sola vez al
+ * grupo y todos los jugadores ven el mapa entero. Si falla el envío al
+ * grupo, el mapa vuelve a enviar a cada jugador por unicast.
+ * Sólo lo usa la hebra dueña del mapa.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class EstadoMapa {
+    // Si las actualizaciones se envían en cada tick en lugar de al momento.
+    private final boolean conTick;
+
+    // Distancia en celdas a la que un jugador ve a los demás personajes.
+    private final int radio;
+
+    // Último estado de cada personaje del mapa, índice de su posición y
+    // los que han cambiado desde el último tick.
+    private final TablaLong<Entrada> estados = new TablaLong<>();
+    private final Rejilla<Entrada> rejilla;
+    private final List<Entrada> cambiados = new ArrayList<>();
+
+    // Listas reutilizadas para los resultados de las búsquedas.
+    private final List<Entrada> cercanos = new ArrayList<>();
+    private final List<Entrada> anteriores = new ArrayList<>();
+
+    // Grupos multicast y dirección del grupo de este mapa, o null si las
+    // actualizaciones se envían a cada jugador.
+    private final GruposMulticast grupos;
+    private SocketAddress grupo;
+
+    // Cubo de fichas de los paquetes de todo el mapa o null sin límite.
+    private final CuboFichas cubo;
+
+    // Métricas en las que se mide cuánto se tarda en difundir.
+    private final Metricas metricas;
+
+    /**
+     * Crea el estado vacío de un mapa.
+     *
+     * @param conTick Si las actualizaciones se envían en cada tick.
+     * @param radio Distancia en celdas a la que se ven los personajes o 0
+     * para que se vea todo el mapa. Con multicast se ve todo el mapa.
+     * @param grupos Grupos multicast de los mapas o null para unicast.
+     * @param mapaId ID del mapa.
+     * @param limites Límites de paquetes por segundo de los mapas.
+     * @param metricas Métricas del servidor.
+     */
+    public EstadoMapa(final boolean conTick, final int radio,
+            final GruposMulticast grupos, final short mapaId,
+            final LimitesCarga limites, final Metricas metricas) {
+        this.conTick = conTick;
+        this.grupos = grupos;
+        this.grupo = (grupos != null) ? grupos.getGrupo(mapaId) : null;
+        this.radio = (radio > 0 && grupos == null) ? radio : Mapa.CeldasPorFila;
+        this.rejilla = new Rejilla<>(this.radio);
+        this.cubo = limites.creaCuboMapa();
+        this.metricas = metricas;
+    }
+
+    /**
+     * Obtiene el cubo de fichas de los paquetes del mapa.
+     *
+     * @return Cubo de fichas o null si no hay límite.
+     */
+    public CuboFichas getCubo() {
+        return this.cubo;
+    }
+
+    /**
+     * Aplica una actualización sobre el estado del personaje.
+     * Si el personaje se ha movido, se avisa a los jugadores que lo dejan
+     * de ver y, si es el de un jugador, se le envían los personajes que
+     * empieza a ver. Después se envía la actualización a los jugadores que
+     * lo ven o se guarda para el siguiente tick.
+     *
+     * @param mensaje Actualización recibida. Se copia, así que se puede
+     * reutilizar.
+     * @param origen Servicio que la ha enviado, que ya la conoce.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    public void aplica(final Actualizacion mensaje, final Servicio origen,
+            final ContextoHebra ctx) {
+        long antes = System.nanoTime();
+        Entrada entrada = this.estados.get(mensaje.getUserId());
+        int hasta = mensaje.getPosicion();
+        if (entrada == null) {
+            entrada = new Entrada();
+            this.estados.put(mensaje.getUserId(), entrada);
+            this.rejilla.anade(entrada, hasta);
+        } else {
+            int desde = entrada.estado.getPosicion();
+            if (desde != hasta) {
+                this.rejilla.mueve(entrada, desde, hasta);
+                this.avisaSalida(entrada, desde, hasta, ctx);
+            }
+        }
+
+        entrada.estado.copia(mensaje);
+
+        // El jugador al que pertenece el personaje lo ve todo desde él.
+        if (origen.getUserId() == mensaje.getUserId() && entrada.dueno != origen) {
+            entrada.dueno = origen;
+            entrada.vista = -1;
+        }
+
+        if (entrada.dueno != null && entrada.vista != hasta) {
+            this.actualizaVista(entrada, entrada.vista, hasta, ctx);
+            entrada.vista = hasta;
+        }
+
+        if (this.conTick) {
+            entrada.origen = origen;
+            if (!entrada.cambiado) {
+                entrada.cambiado = true;
+                this.cambiados.add(entrada);
+            }
+        } else {
+            this.difunde(entrada, origen, ctx);
+        }
+
+        this.metricas.getDifusion().anota(System.nanoTime() - antes);
+    }
+
+    /**
+     * Envía a los jugadores los personajes que han cambiado y tienen a
+     * la vista.
+     *
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    public void difunde(final ContextoHebra ctx) {
+        if (this.cambiados.isEmpty())
+            return;
+
+        long antes = System.nanoTime();
+        for (Entrada entrada : this.cambiados) {
+            this.difunde(entrada, entrada.origen, ctx);
+            entrada.cambiado = false;
+            entrada.origen = null;
+        }
+
+        this.cambiados.clear();
+        this.metricas.getDifusion().anota(System.nanoTime() - antes);
+    }
+
+    /**
+     * Envía el estado de un personaje a los jugadores que lo tienen a
+     * la vista o a todo el grupo. El estado se codifica una sola vez. Los
+     * personajes eliminados se olvidan después de avisar de su muerte.
+     * Con multicast cada cliente descarta lo que llega del grupo sobre su
+     * propio personaje, así que si el cambio lo envía otro jugador, como
+     * en un ataque, al dueño del personaje se le envía además por unicast.
+     *
+     * @param entrada Personaje a enviar.
+     * @param origen Servicio que ya lo conoce, al que no se le envía.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void difunde(final Entrada entrada, final Servicio origen,
+            final ContextoHebra ctx) {
+        Actualizacion estado = entrada.estado;
+        ByteBuffer datos = ctx.getSalida();
+        datos.clear();
+        estado.write(datos);
+        datos.flip();
+
+        int pos = estado.getPosicion();
+        if (!this.enviaGrupo(datos)) {
+            this.rejilla.busca(pos, this.radio, this.cercanos);
+            for (Entrada otra : this.cercanos) {
+                if (otra.dueno != null && otra.dueno != origen
+                        && Mapa.distancia(otra.vista, pos) <= this.radio)
+                    otra.dueno.enviaActualizacion(datos);
+            }
+        } else if (entrada.dueno != null && entrada.dueno != origen) {
+            entrada.dueno.enviaActualizacion(datos);
+        }
+
+        if (estaEliminado(estado)) {
+            this.rejilla.quita(entrada, pos);
+            this.estados.remove(estado.getUserId());
+        }
+    }
+
+    /**
+     * Envía un estado codificado al grupo multicast del mapa, si lo tiene.
+     *
+     * @param datos Buffer con el estado codificado.
+     * @return Falso si se debe enviar a cada jugador por unicast.
+     */
+    private boolean enviaGrupo(final ByteBuffer datos) {
+        if (this.grupo == null)
+            return false;
+
+        try {
+            this.grupos.envia(datos, this.grupo);
+            return true;
+        } catch (IOException ex) {
+            this.metricas.incrementa(Metricas.ErroresEnvio);
+            System.err.println("ERROR en el grupo " + this.grupo + ": "
+                    + ex.getMessage() + ". Se usa unicast.");
+            this.grupo = null;
+            return false;
+        }
+    }
+
+    /**
+     * Avisa a los jugadores que dejan de ver un personaje porque se ha
+     * alejado de ellos.
+     * Antes se vacía el lote pendiente de cada uno, para que una posición
+     * del personaje no llegue después del aviso y lo vuelva a mostrar.
+     *
+     * @param entrada Personaje que se ha movido.
+     * @param desde Posición anterior del personaje.
+     * @param hasta Posición nueva del personaje.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void avisaSalida(final Entrada entrada, final int desde,
+            final int hasta, final ContextoHebra ctx) {
+        SalidaVista salida = ctx.getSalidaVista();
+        salida.limpia();
+        salida.anade(entrada.estado.getUserId());
+
+        this.rejilla.busca(desde, this.radio, this.anteriores);
+        for (Entrada otra : this.anteriores) {
+            if (otra == entrada || otra.dueno == null)
+                continue;
+
+            if (Mapa.distancia(otra.vista, desde) <= this.radio
+                    && Mapa.distancia(otra.vista, hasta) > this.radio) {
+                otra.dueno.vaciaLote();
+                otra.dueno.envia(salida, ctx);
+            }
+        }
+    }
+
+    /**
+     * Actualiza lo que ve un jugador que se ha movido.
+     * Los personajes que empieza a ver se le envían juntos en lotes, así
+     * que al entrar en el mapa le basta con un datagrama para conocer todo
+     * lo que tiene alrededor. De los que deja de ver se le avisa en un
+     * solo mensaje. El lote de actualizaciones pendiente del jugador se
+     * vacía primero, para que no lleguen posiciones antiguas detrás.
+     *
+     * @param entrada Personaje del jugador.
+     * @param desde Posición desde la que veía antes o -1 si no veía nada.
+     * @param hasta Posición desde la que ve ahora.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void actualizaVista(final Entrada entrada, final int desde,
+            final int hasta, final ContextoHebra ctx) {
+        Servicio destino = entrada.dueno;
+        destino.vaciaLote();
+
+        Lote lote = ctx.getLote();
+        lote.limpia();
+        lote.setNumSecuencia((short)0);
+
+        this.rejilla.busca(hasta, this.radio, this.cercanos);
+        for (Entrada otra : this.cercanos) {
+            Actualizacion estado = otra.estado;
+            int pos = estado.getPosicion();
+            if (otra == entrada || estaEliminado(estado)
+                    || Mapa.distancia(hasta, pos) > this.radio)
+                continue;
+
+            if (desde != -1 && Mapa.distancia(desde, pos) <= this.radio)
+                continue;
+
+            if (!lote.anade(estado)) {
+                destino.envia(lote, ctx);
+                lote.limpia();
+                lote.anade(estado);
+            }
+        }
+
+        if (lote.getNumRegistros() > 0)
+            destino.envia(lote, ctx);
+
+        if (desde == -1)
+            return;
+
+        SalidaVista salida = ctx.getSalidaVista();
+        salida.limpia();
+
+        this.rejilla.busca(desde, this.radio, this.anteriores);
+        for (Entrada otra : this.anteriores) {
+            int pos = otra.estado.getPosicion();
+            if (otra == entrada || Mapa.distancia(desde, pos) > this.radio
+                    || Mapa.distancia(hasta, pos) <= this.radio)
+                continue;
+
+            if (!salida.anade(otra.estado.getUserId())) {
+                destino.envia(salida, ctx);
+                salida.limpia();
+                salida.anade(otra.estado.getUserId());
+            }
+        }
+
+        if (salida.getNumUsuarios() > 0)
+            destino.envia(salida, ctx);
+    }
+
+    /**
+     * Comprueba si una actualización indica que el personaje ha muerto.
+     *
+     * @param estado Estado del personaje.
+     * @return Verdadero si se ha eliminado.
+     */
+    private static boolean estaEliminado(final Actualizacion estado) {
+        return estado.getVida() == 0 || estado.getVida() >= 13;
+    }
+
+    /**
+     * Estado de un personaje.
+     */
+    private static class Entrada {
+        private final Actualizacion estado = new Actualizacion();
+
+        // Servicio del jugador del personaje, si lo tiene, y posición
+        // desde la que se le ha enviado lo que ve o -1 si todavía nada.
+        private Servicio dueno;
+        private int vista = -1;
+
+        // Servicio que envió el último cambio y si está pendiente del tick.
+        private Servicio origen;
+        private boolean cambiado;
+    }
+}
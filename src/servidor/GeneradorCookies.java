@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Genera y comprueba las cookies de los retos de registro.
+ * La cookie es un HMAC de la dirección y el puerto del cliente, su ID de
+ * usuario y la época actual, con una clave aleatoria que se crea al arrancar.
+ * Así el servidor no tiene que guardar nada hasta que el cliente la repite,
+ * y quien falsifica la dirección de origen no la recibe.
+ *
+ * El bit inferior de la cookie indica la paridad de la época en la que se
+ * generó, de forma que al comprobarla sólo se calcula un HMAC. Una cookie
+ * vale durante su época y la siguiente. Sólo la usa la hebra que recibe.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class GeneradorCookies {
+    /** Duración de cada época en milisegundos. */
+    public static final long DuracionEpoca = 10000;
+
+    private static final String Algoritmo = "HmacSHA256";
+
+    private final Mac mac;
+
+    // Datos de entrada y resultado del HMAC, reutilizados.
+    private final byte[] entrada = new byte[8 + 2 + 2 + 16];
+    private final byte[] resultado;
+
+    /**
+     * Crea una nueva instancia con una clave aleatoria.
+     */
+    public GeneradorCookies() {
+        byte[] clave = new byte[32];
+        new SecureRandom().nextBytes(clave);
+
+        try {
+            this.mac = Mac.getInstance(Algoritmo);
+            this.mac.init(new SecretKeySpec(clave, Algoritmo));
+        } catch (GeneralSecurityException ex) {
+            // Todas las implementaciones de Java tienen HmacSHA256.
+            throw new IllegalStateException(ex);
+        }
+
+        this.resultado = new byte[this.mac.getMacLength()];
+    }
+
+    /**
+     * Genera la cookie de un cliente para la época actual.
+     *
+     * @param ip Dirección IP del cliente.
+     * @param puerto Puerto del cliente.
+     * @param usuario ID del usuario que se quiere registrar.
+     * @param ahora Instante actual en milisegundos.
+     * @return Cookie que debe repetir el cliente.
+     */
+    public int genera(final InetAddress ip, final int puerto,
+            final short usuario, final long ahora) {
+        return this.calcula(ip, puerto, usuario, ahora / DuracionEpoca);
+    }
+
+    /**
+     * Comprueba la cookie que repite un cliente.
+     *
+     * @param ip Dirección IP del cliente.
+     * @param puerto Puerto del cliente.
+     * @param usuario ID del usuario que se quiere registrar.
+     * @param cookie Cookie recibida.
+     * @param ahora Instante actual en milisegundos.
+     * @return Verdadero si la cookie se generó para este cliente en la época
+     * actual o en la anterior.
+     */
+    public boolean comprueba(final InetAddress ip, final int puerto,
+            final short usuario, final int cookie, final long ahora) {
+        long epoca = ahora / DuracionEpoca;
+        if ((cookie & 1) != (epoca & 1))
+            epoca--;
+
+        return cookie == this.calcula(ip, puerto, usuario, epoca);
+    }
+
+    /**
+     * Calcula la cookie de un cliente en una época.
+     *
+     * @param ip Dirección IP del cliente.
+     * @param puerto Puerto del cliente.
+     * @param usuario ID del usuario.
+     * @param epoca Número de la época.
+     * @return Cookie con la paridad de la época en el bit inferior.
+     */
+    private int calcula(final InetAddress ip, final int puerto,
+            final short usuario, final long epoca) {
+        byte[] datos = this.entrada;
+        int pos = 0;
+        for (int i = 7; i >= 0; i--)
+            datos[pos++] = (byte)(epoca >>> (i * 8));
+        datos[pos++] = (byte)(puerto >>> 8);
+        datos[pos++] = (byte)puerto;
+        datos[pos++] = (byte)(usuario >>> 8);
+        datos[pos++] = (byte)usuario;
+
+        // El hash de una IPv4 es su dirección, así no se copia.
+        if (ip instanceof Inet4Address) {
+            int dir = ip.hashCode();
+            for (int i = 3; i >= 0; i--)
+                datos[pos++] = (byte)(dir >>> (i * 8));
+        } else {
+            byte[] dir = ip.getAddress();
+            System.arraycopy(dir, 0, datos, pos, dir.length);
+            pos += dir.length;
+        }
+
+        this.mac.update(datos, 0, pos);
+        try {
+            this.mac.doFinal(this.resultado, 0);
+        } catch (GeneralSecurityException ex) {
+            // El resultado siempre tiene el tamaño del HMAC.
+            throw new IllegalStateException(ex);
+        }
+
+        int cookie = ((this.resultado[0] & 0xFF) << 24)
+                | ((this.resultado[1] & 0xFF) << 16)
+                | ((this.resultado[2] & 0xFF) << 8)
+                | (this.resultado[3] & 0xFF);
+        return (cookie & ~1) | (int)(epoca & 1);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Grupos multicast de los mapas.
+ * Cada mapa tiene su propio grupo, cuya dirección es la base más el ID del
+ * mapa, de forma que el cliente recibe sólo las actualizaciones del suyo.
+ * El servidor envía cada actualización una sola vez al grupo en lugar de
+ * una vez por jugador. Todos los grupos usan el mismo puerto.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class GruposMulticast {
+    private final Transporte transporte;
+    private final int base;
+    private final int puerto;
+
+    /**
+     * Crea una nueva instancia de los grupos.
+     *
+     * @param transporte Transporte con el que se envían los datagramas.
+     * @param base Dirección IPv4 multicast del grupo del mapa 0.
+     * @param puerto Puerto de los grupos.
+     * @throws IllegalArgumentException Si la dirección no es IPv4 multicast.
+     */
+    public GruposMulticast(final Transporte transporte, final InetAddress base,
+            final int puerto) {
+        if (!(base instanceof Inet4Address) || !base.isMulticastAddress())
+            throw new IllegalArgumentException(
+                    "No es una dirección IPv4 multicast: " + base);
+
+        byte[] bytes = base.getAddress();
+        this.transporte = transporte;
+        this.base = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16)
+                | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        this.puerto = puerto;
+    }
+
+    /**
+     * Crea los grupos a partir de una opción con la forma dirección:puerto.
+     *
+     * @param transporte Transporte con el que se envían los datagramas.
+     * @param valor Valor de la opción.
+     * @return Grupos de los mapas.
+     * @throws IllegalArgumentException Si el valor no es válido.
+     */
+    public static GruposMulticast FromCadena(final Transporte transporte,
+            final String valor) {
+        int separador = valor.lastIndexOf(':');
+        if (separador <= 0)
+            throw new IllegalArgumentException(
+                    "Falta el puerto del grupo multicast: " + valor);
+
+        try {
+            return new GruposMulticast(
+                    transporte,
+                    InetAddress.getByName(valor.substring(0, separador)),
+                    Integer.parseInt(valor.substring(separador + 1))
+            );
+        } catch (UnknownHostException | NumberFormatException ex) {
+            throw new IllegalArgumentException(
+                    "Grupo multicast inválido: " + valor, ex);
+        }
+    }
+
+    /**
+     * Obtiene la dirección IPv4 del grupo de un mapa.
+     *
+     * @param mapaId ID del mapa.
+     * @return Dirección del grupo como entero.
+     */
+    public int getDireccion(final short mapaId) {
+        return this.base + (mapaId & 0xFFFF);
+    }
+
+    /**
+     * Obtiene el puerto de los grupos.
+     *
+     * @return Puerto de los grupos.
+     */
+    public int getPuerto() {
+        return this.puerto;
+    }
+
+    /**
+     * Crea la dirección de socket del grupo de un mapa.
+     *
+     * @param mapaId ID del mapa.
+     * @return Dirección y puerto del grupo.
+     */
+    public SocketAddress getGrupo(final short mapaId) {
+        int dir = this.getDireccion(mapaId);
+        byte[] bytes = {
+            (byte)(dir >>> 24), (byte)(dir >>> 16), (byte)(dir >>> 8), (byte)dir
+        };
+
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes),
+                    this.puerto);
+        } catch (UnknownHostException ex) {
+            // No pasa nunca con una dirección de cuatro bytes.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Envía un datagrama al grupo de un mapa.
+     *
+     * @param datos Buffer con los datos entre su posición y su límite.
+     * No se modifica su posición.
+     * @param grupo Dirección del grupo.
+     * @throws IOException Si se produce un error en el socket.
+     */
+    public void envia(final ByteBuffer datos, final SocketAddress grupo)
+            throws IOException {
+        this.transporte.envia(datos, grupo);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+/**
+ * Histograma de duraciones en nanosegundos con error relativo acotado.
+ * Como en HdrHistogram, cada potencia de dos se divide en ocho cubetas
+ * iguales, así que cualquier valor se guarda con un error menor del 12,5%
+ * usando pocas cubetas. Anotar un valor es sólo un incremento sin bloqueos
+ * y sin reservar memoria. Los percentiles se calculan al leerlo.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Histograma {
+    // Bits de cada potencia de dos que elige la cubeta.
+    private static final int BitsCubeta = 3;
+    private static final int CubetasPorPotencia = 1 << BitsCubeta;
+
+    // Los valores mayores se guardan en la última cubeta (unos 18 minutos).
+    private static final long MaxValor = (1L << 40) - 1;
+    private static final int NumCubetas = getCubeta(MaxValor) + 1;
+
+    // Las cubetas y después el número de valores y su suma.
+    private static final int Cuenta = NumCubetas;
+    private static final int Suma = NumCubetas + 1;
+
+    private final Contadores contadores = new Contadores(NumCubetas + 2);
+
+    /**
+     * Anota una duración.
+     *
+     * @param nanosegundos Duración en nanosegundos.
+     */
+    public void anota(final long nanosegundos) {
+        long valor = Math.max(0, Math.min(nanosegundos, MaxValor));
+        this.contadores.incrementa(getCubeta(valor));
+        this.contadores.incrementa(Cuenta);
+        this.contadores.suma(Suma, valor);
+    }
+
+    /**
+     * Obtiene el número de valores anotados.
+     *
+     * @return Número de valores.
+     */
+    public long getCuenta() {
+        return this.contadores.get(Cuenta);
+    }
+
+    /**
+     * Obtiene la suma de los valores anotados.
+     *
+     * @return Suma en nanosegundos.
+     */
+    public long getSuma() {
+        return this.contadores.get(Suma);
+    }
+
+    /**
+     * Calcula varios percentiles de una vez.
+     * Como se anota mientras se lee, los resultados son aproximados.
+     *
+     * @param percentiles Percentiles entre 0 y 100 en orden creciente.
+     * @return Mayor valor de la cubeta de cada percentil o 0 si está vacío.
+     */
+    public long[] getPercentiles(final double[] percentiles) {
+        long[] cubetas = new long[NumCubetas];
+        long total = 0;
+        for (int i = 0; i < NumCubetas; i++) {
+            cubetas[i] = this.contadores.get(i);
+            total += cubetas[i];
+        }
+
+        long[] resultado = new long[percentiles.length];
+        if (total == 0)
+            return resultado;
+
+        long acumulado = 0;
+        int p = 0;
+        for (int i = 0; i < NumCubetas && p < percentiles.length; i++) {
+            acumulado += cubetas[i];
+            while (p < percentiles.length
+                    && acumulado >= Math.ceil(percentiles[p] / 100 * total)) {
+                resultado[p++] = getMaximo(i);
+            }
+        }
+
+        return resultado;
+    }
+
+    /**
+     * Obtiene la cubeta de un valor.
+     * Los valores pequeños tienen una cubeta cada uno y el resto se reparten
+     * en ocho por cada potencia de dos.
+     *
+     * @param valor Valor entre 0 y MaxValor.
+     * @return Índice de la cubeta.
+     */
+    private static int getCubeta(final long valor) {
+        if (valor < CubetasPorPotencia)
+            return (int)valor;
+
+        int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        int desplazamiento = exponente - BitsCubeta;
+        int parte = (int)(valor >>> desplazamiento) & (CubetasPorPotencia - 1);
+        return (desplazamiento + 1) * CubetasPorPotencia + parte;
+    }
+
+    /**
+     * Obtiene el mayor valor que se guarda en una cubeta.
+     *
+     * @param cubeta Índice de la cubeta.
+     * @return Mayor valor de la cubeta.
+     */
+    private static long getMaximo(final int cubeta) {
+        if (cubeta < CubetasPorPotencia)
+            return cubeta;
+
+        int desplazamiento = cubeta / CubetasPorPotencia - 1;
+        long parte = cubeta % CubetasPorPotencia;
+        return ((CubetasPorPotencia + parte + 1) << desplazamiento) - 1;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+/**
+ * Límites de paquetes por segundo de cada cliente y de cada mapa.
+ * Es el mismo para todos los servicios y mapas, que crean con él sus
+ * propios cubos de fichas. Los paquetes y registros descartados o aplazados
+ * se cuentan en las métricas del servidor.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class LimitesCarga {
+    // Paquetes por segundo de cada cliente y de cada mapa, o 0 sin límite.
+    private final int porCliente;
+    private final int porMapa;
+
+    private final Metricas metricas;
+
+    /**
+     * Crea los límites.
+     *
+     * @param porCliente Paquetes por segundo de cada cliente o 0.
+     * @param porMapa Paquetes por segundo de cada mapa o 0.
+     * @param metricas Métricas del servidor.
+     */
+    public LimitesCarga(final int porCliente, final int porMapa,
+            final Metricas metricas) {
+        this.porCliente = porCliente;
+        this.porMapa = porMapa;
+        this.metricas = metricas;
+    }
+
+    /**
+     * Crea el cubo de fichas de un cliente.
+     *
+     * @return Cubo lleno o null si no hay límite.
+     */
+    public CuboFichas creaCuboCliente() {
+        return (this.porCliente > 0) ? new CuboFichas(this.porCliente) : null;
+    }
+
+    /**
+     * Crea el cubo de fichas de un mapa.
+     *
+     * @return Cubo lleno o null si no hay límite.
+     */
+    public CuboFichas creaCuboMapa() {
+        return (this.porMapa > 0) ? new CuboFichas(this.porMapa) : null;
+    }
+
+    /**
+     * Cuenta un paquete descartado por superar el límite de su cliente.
+     */
+    public void descartaCliente() {
+        this.metricas.incrementa(Metricas.DescartesCliente);
+    }
+
+    /**
+     * Cuenta un paquete descartado por superar el límite de su mapa.
+     */
+    public void descartaMapa() {
+        this.metricas.incrementa(Metricas.DescartesMapa);
+    }
+
+    /**
+     * Cuenta una solicitud de registro que se deja para más tarde.
+     */
+    public void aplazaRegistro() {
+        this.metricas.incrementa(Metricas.RegistrosAplazados);
+    }
+
+    /**
+     * Cuenta una solicitud de registro descartada por no caber en la cola
+     * o por llevar demasiado tiempo en ella.
+     */
+    public void descartaRegistro() {
+        this.metricas.incrementa(Metricas.RegistrosDescartados);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mensaje;
+import comun.TipoMensaje;
+import java.nio.ByteBuffer;
+
+/**
+ * Registro de las métricas del servidor.
+ * Cuenta los paquetes y bytes recibidos y enviados por tipo de mensaje,
+ * los descartes de cada motivo, las sesiones y mapas activos, y mide en
+ * histogramas cuánto se tarda en decodificar, en despachar y en difundir.
+ * Todo se anota sin bloqueos ni reservar memoria, así que se puede usar en
+ * cualquier hebra en cada paquete. Sólo al leerlas se hace el trabajo de
+ * sumar las franjas y calcular los percentiles.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Metricas {
+    // Índices de los contadores generales.
+    public static final int BytesRecibidos = 0;
+    public static final int BytesEnviados = 1;
+    public static final int Sesiones = 2;
+    public static final int Mapas = 3;
+    public static final int RetosEnviados = 4;
+    public static final int DescartesSinSesion = 5;
+    public static final int DescartesFormato = 6;
+    public static final int DescartesCrc = 7;
+    public static final int DescartesCliente = 8;
+    public static final int DescartesMapa = 9;
+    public static final int DescartesTrabajador = 10;
+    public static final int DescartesSalida = 11;
+    public static final int RegistrosAplazados = 12;
+    public static final int RegistrosDescartados = 13;
+    public static final int ErroresEnvio = 14;
+    public static final int DescartesBase = 15;
+    public static final int DescartesTipo = 16;
+
+    // Nombres de los contadores generales en el texto, en el mismo orden.
+    private static final String[] Nombres = {
+        "bytes_recibidos",
+        "bytes_enviados",
+        "sesiones",
+        "mapas",
+        "retos_enviados",
+        "descartes_sin_sesion",
+        "descartes_formato",
+        "descartes_crc",
+        "descartes_limite_cliente",
+        "descartes_limite_mapa",
+        "descartes_cola_trabajador",
+        "descartes_cola_salida",
+        "registros_aplazados",
+        "registros_descartados",
+        "errores_envio",
+        "descartes_base_delta",
+        "descartes_tipo"
+    };
+
+    // Percentiles que se muestran de cada histograma.
+    private static final double[] Percentiles = { 50, 90, 99, 99.9, 100 };
+
+    private static final TipoMensaje[] Tipos = TipoMensaje.values();
+
+    private final Contadores generales = new Contadores(Nombres.length);
+    private final Contadores recibidos = new Contadores(Tipos.length);
+    private final Contadores enviados = new Contadores(Tipos.length);
+
+    private final Histograma decodificacion = new Histograma();
+    private final Histograma despacho = new Histograma();
+    private final Histograma difusion = new Histograma();
+
+    private final long inicio = System.currentTimeMillis();
+
+    /**
+     * Suma uno a un contador general.
+     *
+     * @param indice Índice del contador.
+     */
+    public void incrementa(final int indice) {
+        this.generales.incrementa(indice);
+    }
+
+    /**
+     * Suma una cantidad a un contador general.
+     *
+     * @param indice Índice del contador.
+     * @param cantidad Cantidad a sumar, que puede ser negativa.
+     */
+    public void suma(final int indice, final long cantidad) {
+        this.generales.suma(indice, cantidad);
+    }
+
+    /**
+     * Obtiene el valor de un contador general.
+     *
+     * @param indice Índice del contador.
+     * @return Valor del contador.
+     */
+    public long get(final int indice) {
+        return this.generales.get(indice);
+    }
+
+    /**
+     * Anota un datagrama recibido.
+     *
+     * @param datos Buffer con el datagrama. No se modifica su posición.
+     */
+    public void anotaRecibido(final ByteBuffer datos) {
+        this.recibidos.incrementa(Mensaje.PeekTipo(datos).ordinal());
+        this.generales.suma(BytesRecibidos, datos.remaining());
+    }
+
+    /**
+     * Anota un datagrama enviado.
+     *
+     * @param datos Buffer con el datagrama. No se modifica su posición.
+     */
+    public void anotaEnviado(final ByteBuffer datos) {
+        this.enviados.incrementa(Mensaje.PeekTipo(datos).ordinal());
+        this.generales.suma(BytesEnviados, datos.remaining());
+    }
+
+    /**
+     * Obtiene el histograma del tiempo de decodificar cada paquete.
+     *
+     * @return Histograma en nanosegundos.
+     */
+    public Histograma getDecodificacion() {
+        return this.decodificacion;
+    }
+
+    /**
+     * Obtiene el histograma del tiempo que espera cada paquete en la cola
+     * de su trabajador. Sin trabajadores está vacío.
+     *
+     * @return Histograma en nanosegundos.
+     */
+    public Histograma getDespacho() {
+        return this.despacho;
+    }
+
+    /**
+     * Obtiene el histograma del tiempo de aplicar una actualización o un
+     * tick al estado de un mapa y enviarlo a los jugadores.
+     *
+     * @return Histograma en nanosegundos.
+     */
+    public Histograma getDifusion() {
+        return this.difusion;
+    }
+
+    /**
+     * Escribe todas las métricas en texto, una por línea con su nombre,
+     * sus etiquetas entre llaves y su valor.
+     *
+     * @param texto Donde se escriben.
+     */
+    public void escribe(final StringBuilder texto) {
+        texto.append("segundos_activo ")
+                .append((System.currentTimeMillis() - this.inicio) / 1000)
+                .append('\n');
+
+        for (int i = 0; i < Nombres.length; i++)
+            texto.append(Nombres[i]).append(' ')
+                    .append(this.generales.get(i)).append('\n');
+
+        escribePorTipo(texto, "paquetes_recibidos", this.recibidos);
+        escribePorTipo(texto, "paquetes_enviados", this.enviados);
+
+        escribeHistograma(texto, "decodificacion_ns", this.decodificacion);
+        escribeHistograma(texto, "despacho_ns", this.despacho);
+        escribeHistograma(texto, "difusion_ns", this.difusion);
+    }
+
+    /**
+     * Escribe un contador por cada tipo de mensaje que tenga alguno.
+     *
+     * @param texto Donde se escribe.
+     * @param nombre Nombre de la métrica.
+     * @param contadores Contadores por tipo de mensaje.
+     */
+    private static void escribePorTipo(final StringBuilder texto,
+            final String nombre, final Contadores contadores) {
+        for (TipoMensaje tipo : Tipos) {
+            long valor = contadores.get(tipo.ordinal());
+            if (valor == 0)
+                continue;
+
+            texto.append(nombre).append("{tipo=\"").append(tipo.name())
+                    .append("\"} ").append(valor).append('\n');
+        }
+    }
+
+    /**
+     * Escribe la cuenta, la suma y los percentiles de un histograma.
+     *
+     * @param texto Donde se escribe.
+     * @param nombre Nombre de la métrica.
+     * @param histograma Histograma a escribir.
+     */
+    private static void escribeHistograma(final StringBuilder texto,
+            final String nombre, final Histograma histograma) {
+        texto.append(nombre).append("_cuenta ")
+                .append(histograma.getCuenta()).append('\n');
+        texto.append(nombre).append("_suma ")
+                .append(histograma.getSuma()).append('\n');
+
+        long[] valores = histograma.getPercentiles(Percentiles);
+        for (int i = 0; i < Percentiles.length; i++)
+            texto.append(nombre).append("{percentil=\"")
+                    .append(Percentiles[i]).append("\"} ")
+                    .append(valores[i]).append('\n');
+    }
+}
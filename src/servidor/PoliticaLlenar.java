@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+/**
+ * Coloca a cada jugador en el mapa más lleno que tenga sitio.
+ * Los mapas se llenan de uno en uno y sólo se crea uno nuevo cuando todos
+ * están completos, así que hay pocos mapas con mucha gente.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class PoliticaLlenar implements PoliticaMapas {
+    @Override
+    public short elige(final AsignadorMapas asignador, final short userId) {
+        for (int n = asignador.getLimite() - 1; n >= 0; n--)
+            for (short mapaId : asignador.getMapas(n))
+                if (!asignador.contiene(mapaId, userId))
+                    return mapaId;
+
+        return -1;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+/**
+ * Criterio para elegir el mapa en el que entra un jugador nuevo.
+ *
+ * @author Benito Palacios Sánchez
+ */
+interface PoliticaMapas {
+    /**
+     * Elige el mapa en el que entra un jugador.
+     * Sólo se pueden elegir mapas con menos jugadores que el límite del
+     * asignador y en los que no haya otro jugador con el mismo ID.
+     *
+     * @param asignador Ocupación de los mapas.
+     * @param userId ID del jugador.
+     * @return ID del mapa elegido o -1 para crear uno nuevo.
+     */
+    short elige(AsignadorMapas asignador, short userId);
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Mapa;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Índice espacial de un mapa.
+ * Divide el mapa en sectores cuadrados del mismo tamaño y guarda en cada uno
+ * los objetos que están en alguna de sus celdas. Para encontrar los objetos
+ * cercanos a una posición sólo hay que mirar los sectores que tocan el
+ * cuadrado alrededor de ella, así que el coste depende de los objetos de
+ * la zona y no de los de todo el mapa.
+ * Sólo lo usa la hebra dueña del mapa.
+ *
+ * @param <T> Tipo de los objetos guardados.
+ * @author Benito Palacios Sánchez
+ */
+class Rejilla<T> {
+    // Celdas por lado de cada sector y sectores por lado del mapa.
+    private final int tamSector;
+    private final int sectoresPorFila;
+
+    // Objetos de cada sector, recorriendo los sectores por filas.
+    private final List<List<T>> sectores;
+
+    /**
+     * Crea un índice vacío.
+     *
+     * @param tamSector Celdas por lado de cada sector. Con el mismo valor
+     * que el radio de las búsquedas, cada búsqueda mira como mucho 3x3
+     * sectores.
+     */
+    public Rejilla(final int tamSector) {
+        this.tamSector = Math.max(Math.min(tamSector, Mapa.CeldasPorFila), 1);
+        this.sectoresPorFila = (Mapa.CeldasPorFila + this.tamSector - 1)
+                / this.tamSector;
+
+        int numSectores = this.sectoresPorFila * this.sectoresPorFila;
+        this.sectores = new ArrayList<>(numSectores);
+        for (int i = 0; i < numSectores; i++)
+            this.sectores.add(new ArrayList<T>());
+    }
+
+    /**
+     * Añade un objeto en una posición.
+     *
+     * @param objeto Objeto a añadir.
+     * @param pos Posición del objeto.
+     */
+    public void anade(final T objeto, final int pos) {
+        this.sectores.get(this.getSector(pos)).add(objeto);
+    }
+
+    /**
+     * Quita un objeto de una posición.
+     *
+     * @param objeto Objeto a quitar.
+     * @param pos Posición en la que se añadió o movió por última vez.
+     */
+    public void quita(final T objeto, final int pos) {
+        this.sectores.get(this.getSector(pos)).remove(objeto);
+    }
+
+    /**
+     * Mueve un objeto de una posición a otra.
+     * Si las dos están en el mismo sector no hay que hacer nada.
+     *
+     * @param objeto Objeto a mover.
+     * @param desde Posición anterior.
+     * @param hasta Posición nueva.
+     */
+    public void mueve(final T objeto, final int desde, final int hasta) {
+        int anterior = this.getSector(desde);
+        int nuevo = this.getSector(hasta);
+        if (anterior == nuevo)
+            return;
+
+        this.sectores.get(anterior).remove(objeto);
+        this.sectores.get(nuevo).add(objeto);
+    }
+
+    /**
+     * Obtiene los objetos de los sectores que tocan el cuadrado de un radio
+     * alrededor de una posición.
+     * Puede devolver objetos algo más lejanos, así que quien llama tiene
+     * que comprobar la distancia exacta.
+     *
+     * @param pos Centro de la búsqueda.
+     * @param radio Radio en celdas.
+     * @param resultado Lista que se vacía y en la que se guardan los objetos.
+     */
+    public void busca(final int pos, final int radio, final List<T> resultado) {
+        resultado.clear();
+
+        int x1 = this.limita((Mapa.columna(pos) - radio) / this.tamSector);
+        int x2 = this.limita((Mapa.columna(pos) + radio) / this.tamSector);
+        int y1 = this.limita((Mapa.fila(pos) - radio) / this.tamSector);
+        int y2 = this.limita((Mapa.fila(pos) + radio) / this.tamSector);
+
+        // Se copian uno a uno porque addAll crea un vector temporal.
+        for (int y = y1; y <= y2; y++) {
+            for (int x = x1; x <= x2; x++) {
+                List<T> sector = this.sectores.get(y * this.sectoresPorFila + x);
+                for (int i = 0; i < sector.size(); i++)
+                    resultado.add(sector.get(i));
+            }
+        }
+    }
+
+    /**
+     * Obtiene el sector de una posición.
+     * Las posiciones fuera del mapa van al sector más cercano.
+     *
+     * @param pos Posición.
+     * @return Índice del sector.
+     */
+    private int getSector(final int pos) {
+        int x = this.limita(Mapa.columna(pos) / this.tamSector);
+        int y = this.limita(Mapa.fila(pos) / this.tamSector);
+        return y * this.sectoresPorFila + x;
+    }
+
+    /**
+     * Ajusta una coordenada de sector a los límites de la rejilla.
+     *
+     * @param coord Coordenada de sector.
+     * @return Coordenada dentro de la rejilla.
+     */
+    private int limita(final int coord) {
+        return Math.max(0, Math.min(coord, this.sectoresPorFila - 1));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rueda temporal para programar vencimientos.
+ * El tiempo se divide en ticks y cada tick tiene una ranura con los elementos
+ * que vencen en él. Programar un elemento y avanzar un tick cuesta O(1),
+ * independientemente del número de elementos programados.
+ *
+ * Los elementos no se pueden desprogramar. Quien los recibe al vencer debe
+ * comprobar si siguen siendo válidos y volver a programarlos si hace falta.
+ *
+ * @param <T> Tipo de los elementos.
+ * @author Benito Palacios Sánchez
+ */
+class RuedaTemporal<T> {
+    private final List<List<T>> ranuras;
+    private final long duracionTick;
+    private long tickActual;
+
+    /**
+     * Crea una nueva rueda.
+     *
+     * @param duracionTick Duración de un tick en milisegundos.
+     * @param alcance Tiempo máximo en milisegundos al que se programará.
+     * @param ahora Instante actual en milisegundos.
+     */
+    public RuedaTemporal(final long duracionTick, final long alcance,
+            final long ahora) {
+        int numRanuras = (int)(alcance / duracionTick) + 2;
+        this.ranuras = new ArrayList<>(numRanuras);
+        for (int i = 0; i < numRanuras; i++)
+            this.ranuras.add(new ArrayList<T>());
+
+        this.duracionTick = duracionTick;
+        this.tickActual = ahora / duracionTick;
+    }
+
+    /**
+     * Programa un elemento para que venza en un instante.
+     * Nunca vence antes de dicho instante, salvo que esté fuera del alcance
+     * de la rueda, en cuyo caso vence en el último tick posible.
+     *
+     * @param elemento Elemento a programar.
+     * @param instante Instante en milisegundos en el que vence.
+     */
+    public void programa(final T elemento, final long instante) {
+        int numRanuras = this.ranuras.size();
+        long tick = (instante + this.duracionTick - 1) / this.duracionTick;
+        if (tick <= this.tickActual)
+            tick = this.tickActual + 1;
+        else if (tick - this.tickActual >= numRanuras)
+            tick = this.tickActual + numRanuras - 1;
+
+        this.ranuras.get((int)(tick % numRanuras)).add(elemento);
+    }
+
+    /**
+     * Avanza la rueda hasta el instante actual, pasando al oyente todos
+     * los elementos que han vencido.
+     *
+     * @param ahora Instante actual en milisegundos.
+     * @param oyente Oyente que recibe los elementos vencidos.
+     */
+    public void avanza(final long ahora, final Vencimiento<T> oyente) {
+        int numRanuras = this.ranuras.size();
+        long objetivo = ahora / this.duracionTick;
+
+        // Si ha pasado más de una vuelta basta con recorrerla una vez.
+        if (objetivo - this.tickActual > numRanuras)
+            this.tickActual = objetivo - numRanuras;
+
+        while (this.tickActual < objetivo) {
+            this.tickActual++;
+
+            // El oyente sólo puede programar en ticks posteriores,
+            // así que nunca modifica la ranura que se está recorriendo.
+            List<T> ranura = this.ranuras.get((int)(this.tickActual % numRanuras));
+            for (int i = 0; i < ranura.size(); i++)
+                oyente.vence(ranura.get(i), ahora);
+            ranura.clear();
+        }
+    }
+
+    /**
+     * Interfaz para recibir los elementos que vencen.
+     *
+     * @param <T> Tipo de los elementos.
+     */
+    interface Vencimiento<T> {
+        /**
+         * Se llama cuando vence un elemento.
+         *
+         * @param elemento Elemento vencido.
+         * @param ahora Instante actual en milisegundos.
+         */
+        void vence(T elemento, long ahora);
+    }
+}
@@ -0,0 +1,765 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import comun.Actualizacion;
+import comun.ActualizacionDelta;
+import comun.Confirmacion;
+import comun.Crc16;
+import comun.Lote;
+import comun.Mensaje;
+import comun.MessageFormatException;
+import comun.RegistroCorrecto;
+import comun.RegistroSolicitud;
+import comun.TipoMensaje;
+import comun.VentanaRecepcion;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clase con la funcionalidad del servidor.
+ * Esta clase se encarga de recibir paquetes y procesarlos.
+ * Se crea una instancia de la clase por cada cliente.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class Servicio {
+    // Variables de los sockets
+    private final Transporte transporte;
+    private final SocketAddress address;
+    
+    // Decide el mapa de cada jugador y lleva la cuenta de los que hay.
+    // Sólo se usa en el primer registro, que procesa la hebra que recibe.
+    private final AsignadorMapas asignador;
+    
+    // Decide la hebra que procesa los paquetes y mantiene la lista
+    // de jugadores de cada mapa.
+    private final Despachador despachador;
+    
+    // Lista de servicios del mismo mapa.
+    private List<Servicio> vecinos;
+    
+    // Estado del mapa de este jugador, con el último estado de cada personaje
+    // y lo que ve cada jugador.
+    private EstadoMapa mundo;
+    
+    // Diccionario de métodos para procesar los mensajes recibidos.
+    // Es el mismo para todos los servicios.
+    private static final Map<TipoMensaje, ProcesaAccion> Acciones = creaAcciones();
+    
+    // Usuarios y contraseñas (CRC16) admitidos, compartidos por todos los
+    // servicios. Si es null se admite a cualquiera.
+    private final Credenciales credenciales;
+    
+    // Grupos multicast de los mapas, que se indican al registrarse, o null.
+    private final GruposMulticast grupos;
+
+    
+    // Variables que identifican al usuario
+    private short userId = -1;
+    private short mapaId = -1;
+    
+    // Guarda el último mensaje de actualización recibido para avisar de su
+    // muerte al resto de jugadores si el cliente deja de responder. Los
+    // mensajes decodificados se reutilizan, así que se guarda una copia.
+    private Actualizacion lastUpdate;
+
+    
+    // Números de secuencia de las actualizaciones recibidas. El cliente
+    // envía varias sin esperar confirmación y retransmite las perdidas,
+    // así que pueden llegar duplicadas o desordenadas.
+    private final VentanaRecepcion ventana = new VentanaRecepcion();
+    
+    // Últimas actualizaciones recibidas por número de secuencia, que son las
+    // bases sobre las que el cliente codifica las actualizaciones delta.
+    // El cliente sólo usa bases confirmadas a menos de una ventana de
+    // distancia y no adelanta más de una ventana a un mensaje sin confirmar,
+    // así que con dos ventanas de historial la base de cualquier delta,
+    // incluso retransmitida, sigue aquí. Se crea con la primera.
+    private static final int TamHistorial = 2 * VentanaRecepcion.Tamanio;
+    private Actualizacion[] historial;
+    
+    // Actualizaciones de otros jugadores pendientes de enviar juntas en un
+    // lote. Si es null se envía cada una en su propio datagrama. Sólo lo
+    // usa la hebra dueña del mapa y se crea al registrarse, para no reservarlo
+    // por cada dirección que envíe un paquete.
+    private final boolean conLote;
+    private ByteBuffer lote;
+    
+    // Si se descartan los paquetes que no terminan con el CRC16 del mensaje.
+    private final boolean exigeCrc;
+    
+    // Hebra que envía los datagramas y cola de los pendientes para este
+    // cliente, o null si se envían directamente. Sólo añade a la cola la
+    // hebra dueña del mapa y se crea al registrarse, como el lote.
+    private final Emisor emisor;
+    private ColaSalida salida;
+    
+    // Nanosegundos que se espera a que la hebra emisora haga sitio en la
+    // cola antes de volver a intentar añadir.
+    private static final long EsperaSalida = 100000;
+    
+    // Límites de paquetes por segundo, compartidos por todos los servicios,
+    // y cubo de fichas de este cliente o null si no tiene límite.
+    private final LimitesCarga limites;
+    private final CuboFichas cubo;
+    
+    // Métricas del servidor, compartidas por todos los servicios.
+    private final Metricas metricas;
+    
+    // CRC16 de los bytes del último mensaje recibido, que se devuelve en su
+    // confirmación. Se calcula sobre el paquete tal cual llega, sin volver
+    // a codificar el mensaje.
+    private short hashRecibido;
+    
+    // Instante en milisegundos en el que se recibió el último paquete.
+    // Sólo lo usa la hebra que recibe para expulsar a los inactivos.
+    private long ultimoPaquete;
+    
+    // Si tiene una solicitud de registro en la cola de admisión.
+    // Sólo lo usa la hebra que recibe.
+    private boolean aplazado;
+
+    /**
+     * Crea una nueva instancia del servicio.
+     * 
+     * @param transporte Transporte UDP para comunicación
+     * @param address Dirección del cliente.
+     * @param asignador Asignador de los mapas.
+     * @param despachador Despachador de los paquetes.
+     * @param credenciales Usuarios admitidos o null para admitir a todos.
+     * @param grupos Grupos multicast de los mapas o null.
+     * @param conLote Si las actualizaciones se agrupan en lotes.
+     * @param exigeCrc Si los paquetes deben terminar con el CRC16 del mensaje.
+     * @param emisor Hebra que envía los datagramas o null para enviarlos
+     * directamente.
+     * @param limites Límites de paquetes por segundo de clientes y mapas.
+     * @param metricas Métricas del servidor.
+     */
+    public Servicio(final Transporte transporte, final SocketAddress address, 
+            final AsignadorMapas asignador, final Despachador despachador,
+            final Credenciales credenciales, final GruposMulticast grupos,
+            final boolean conLote, final boolean exigeCrc,
+            final Emisor emisor, final LimitesCarga limites,
+            final Metricas metricas) {
+        this.transporte = transporte;
+        this.address = address;
+        this.asignador = asignador;
+        this.despachador = despachador;
+        this.credenciales = credenciales;
+        this.grupos = grupos;
+        this.conLote = conLote;
+        this.exigeCrc = exigeCrc;
+        this.emisor = emisor;
+        this.limites = limites;
+        this.cubo = limites.creaCuboCliente();
+        this.metricas = metricas;
+    }
+    
+    /**
+     * Obtiene la dirección del cliente.
+     * 
+     * @return Dirección del cliente.
+     */
+    public SocketAddress getAddress() {
+        return this.address;
+    }
+    
+    /**
+     * Obtiene el instante en el que se recibió el último paquete.
+     * 
+     * @return Instante en milisegundos.
+     */
+    public long getUltimoPaquete() {
+        return this.ultimoPaquete;
+    }
+    
+    /**
+     * Establece el instante en el que se recibió el último paquete.
+     * 
+     * @param instante Instante en milisegundos.
+     */
+    public void setUltimoPaquete(final long instante) {
+        this.ultimoPaquete = instante;
+    }
+    
+    /**
+     * Indica si tiene una solicitud de registro esperando en la cola
+     * de admisión.
+     * 
+     * @return Verdadero si está en la cola.
+     */
+    public boolean isAplazado() {
+        return this.aplazado;
+    }
+    
+    /**
+     * Establece si tiene una solicitud de registro esperando en la cola
+     * de admisión.
+     * 
+     * @param aplazado Si está en la cola.
+     */
+    public void setAplazado(final boolean aplazado) {
+        this.aplazado = aplazado;
+    }
+    
+    /**
+     * Obtiene el ID del usuario.
+     * Este valor será -1 cuando todavía no se haya registrado.
+     * 
+     * @return ID del usuario.
+     */
+    public short getUserId() {
+        return this.userId;
+    }
+    
+    /**
+     * Obtiene el ID del mapa.
+     * Este valor será -1 cuando todavía no se haya registrado.
+     * 
+     * @return ID del mapa.
+     */
+    public short getMapaId() {
+        return this.mapaId;
+    }
+    
+    /**
+     * Obtiene la lista de servicios del mapa de este jugador.
+     * 
+     * @return Lista de servicios del mapa.
+     */
+    public List<Servicio> getVecinos() {
+        return this.vecinos;
+    }
+    
+    /**
+     * Establece la lista de servicios del mapa de este jugador.
+     * La llama el despachador cuando el servicio se une a un mapa.
+     * 
+     * @param vecinos Lista de servicios del mapa.
+     */
+    public void setVecinos(final List<Servicio> vecinos) {
+        this.vecinos = vecinos;
+    }
+    
+    /**
+     * Establece el estado del mapa de este jugador.
+     * La llama el despachador cuando el servicio se une a un mapa.
+     * 
+     * @param mundo Estado del mapa.
+     */
+    public void setMundo(final EstadoMapa mundo) {
+        this.mundo = mundo;
+    }
+    
+    /**
+     * Olvida el mapa del jugador después de que lo haya abandonado, para
+     * que los paquetes no se sigan entregando a su hebra y el siguiente
+     * registro le asigne uno nuevo.
+     * La llama el despachador desde la hebra que recibe, una vez quitado
+     * del asignador.
+     */
+    public void olvidaMapa() {
+        this.mapaId = -1;
+    }
+    
+    /**
+     * Recibe un paquete y lo procesa.
+     * Este método se encargará de convertirlo a mensaje correspondiente
+     * y llamar a un método para que lo procese.
+     * Si detrás del mensaje vienen dos bytes más, son su CRC16 y el paquete
+     * se descarta si no coincide. El mismo cálculo sirve para la confirmación.
+     * Antes de decodificarlo se descarta si el cliente o su mapa han superado
+     * su límite de paquetes por segundo.
+     * 
+     * @param datos Datos del paquete recibido del cliente.
+     * @param ctx Objetos reutilizables de la hebra que procesa el paquete.
+     */
+    public void recibe(final ByteBuffer datos, final ContextoHebra ctx) {
+        if (this.superaLimites())
+            return;
+        
+        // Obtiene una petición del cliente.
+        // Obtiene el mensaje contenido en los datos.
+        Mensaje mensaje = null;
+        int inicio = datos.position();
+        long antes = System.nanoTime();
+        try {
+            mensaje = ctx.getDecodificador().decodifica(datos);
+        } catch (MessageFormatException ex) {
+            // Se cuenta como un descarte de formato más abajo.
+        }
+        this.metricas.getDecodificacion().anota(System.nanoTime() - antes);
+
+        if (mensaje == null) {
+            this.metricas.incrementa(Metricas.DescartesFormato);
+            return;
+        }
+        
+        // Comprueba el CRC del final del paquete, si lo tiene.
+        int fin = datos.position();
+        short crc = Crc16.calculate(datos, inicio, fin - inicio);
+        if (datos.remaining() == Crc16.Size) {
+            if (datos.getShort(fin) != crc) {
+                this.metricas.incrementa(Metricas.DescartesCrc);
+                return;
+            }
+        } else if (this.exigeCrc) {
+            this.metricas.incrementa(Metricas.DescartesCrc);
+            return;
+        }
+        
+        // Si no ha habido errores, procesamos el mensaje.
+        this.hashRecibido = crc;
+        this.procesaMensaje(mensaje, ctx);
+    }
+
+    /**
+     * Gasta una ficha del cubo del cliente y otra del de su mapa.
+     * Si el cliente ya ha superado su límite no gasta las del mapa, así que
+     * un cliente que envía demasiado no deja sin fichas a los demás.
+     * 
+     * @return Verdadero si se debe descartar el paquete.
+     */
+    private boolean superaLimites() {
+        CuboFichas cuboMapa = (this.mundo != null) ? this.mundo.getCubo() : null;
+        if (this.cubo == null && cuboMapa == null)
+            return false;
+        
+        long ahora = BucleServidor.getAhora();
+        if (this.cubo != null && !this.cubo.gasta(ahora)) {
+            this.limites.descartaCliente();
+            return true;
+        }
+        
+        if (cuboMapa != null && !cuboMapa.gasta(ahora)) {
+            this.limites.descartaMapa();
+            return true;
+        }
+        
+        return false;
+    }
+
+    /**
+     * Envía un mensaje de actualización ya codificado al cliente.
+     * Este método está expuesto al público para que otros Servicios
+     * puedan enviar sus mensajes de actualización a nuestro cliente.
+     * El mensaje se codifica una sola vez y se envía a todos los jugadores.
+     * Si se usan lotes, se añade al lote pendiente, que se envía cuando se
+     * llena o al llamar a vaciaLote.
+     * Si la cola de salida está llena, es lo primero que se descarta, ya que
+     * llegará otra actualización más nueva del mismo personaje.
+     * 
+     * @param datos Buffer con los datos del mensaje de actualización.
+     */
+    public void enviaActualizacion(final ByteBuffer datos) {
+        if (this.lote == null) {
+            this.envia(datos, true);
+            return;
+        }
+        
+        if (this.lote.position() == 0)
+            Lote.Inicia(this.lote, (short)0);
+        
+        if (!Lote.Anade(this.lote, datos)) {
+            this.vaciaLote();
+            Lote.Inicia(this.lote, (short)0);
+            Lote.Anade(this.lote, datos);
+        }
+    }
+    
+    /**
+     * Envía el lote de actualizaciones pendiente, si lo hay.
+     * Lo llama periódicamente la hebra dueña del mapa.
+     */
+    public void vaciaLote() {
+        if (this.lote == null || this.lote.position() <= Lote.TamCabecera)
+            return;
+        
+        this.lote.flip();
+        this.envia(this.lote, true);
+        this.lote.clear();
+    }
+    
+    /**
+     * Envía un mensaje por el socket UDP.
+     * Sólo lo puede llamar la hebra dueña del mapa, ya que es la única
+     * que añade a la cola de salida.
+     * 
+     * @param mensaje Mensaje a enviar.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    public void envia(final Mensaje mensaje, final ContextoHebra ctx) {
+        this.envia(codifica(mensaje, ctx), false);
+    }
+    
+    /**
+     * Codifica un mensaje en el buffer de salida de la hebra.
+     * 
+     * @param mensaje Mensaje a codificar.
+     * @param ctx Objetos reutilizables de la hebra.
+     * @return Buffer con los datos del mensaje listo para leer.
+     */
+    private static ByteBuffer codifica(final Mensaje mensaje,
+            final ContextoHebra ctx) {
+        ByteBuffer salida = ctx.getSalida();
+        salida.clear();
+        mensaje.write(salida);
+        salida.flip();
+        return salida;
+    }
+    
+    /**
+     * Envía un mensaje ya codificado a través de la cola de salida, si la hay.
+     * Lo que no se puede descartar y no cabe en la cola espera a que la hebra
+     * emisora haga sitio, para no perderlo ni adelantarlo a lo que ya está
+     * en la cola.
+     * 
+     * @param datos Buffer con los datos del mensaje a enviar.
+     * @param descartable Si se puede descartar cuando la cola está llena.
+     */
+    private void envia(final ByteBuffer datos, final boolean descartable) {
+        if (this.salida == null) {
+            this.transmite(datos);
+            return;
+        }
+        
+        while (!this.salida.anade(datos, descartable)) {
+            if (descartable)
+                return;
+            
+            if (this.salida.programa())
+                this.emisor.programa(this);
+            LockSupport.parkNanos(EsperaSalida);
+        }
+        
+        if (this.salida.programa())
+            this.emisor.programa(this);
+    }
+    
+    /**
+     * Envía los datagramas pendientes de la cola de salida.
+     * Sólo lo llama la hebra emisora. La cola se desprograma antes de
+     * vaciarla, así que lo que se añada mientras tanto la vuelve a programar.
+     * 
+     * @param datos Buffer en el que se copia cada datagrama.
+     */
+    public void vaciaSalida(final ByteBuffer datos) {
+        this.salida.desprograma();
+        while (this.salida.saca(datos))
+            this.transmite(datos);
+    }
+    
+    /**
+     * Envía un mensaje ya codificado por el socket UDP.
+     * 
+     * @param datos Buffer con los datos del mensaje a enviar.
+     */
+    private void transmite(final ByteBuffer datos) {
+        try {
+            // Lo envía a la dirección del cliente.
+            this.transporte.envia(datos, this.address);
+        } catch (IOException ex) {
+            this.metricas.incrementa(Metricas.ErroresEnvio);
+            System.err.println("ERROR: " + ex.getMessage());
+        }            
+    }
+    
+    /**
+     * Procesa el mensaje.
+     * Los mensajes recibidos de cada tipo se cuentan en las métricas al
+     * llegar, y los de tipos que el servidor no procesa se descartan.
+     * 
+     * @param mensaje Mensaje a procesar.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void procesaMensaje(final Mensaje mensaje, final ContextoHebra ctx) {
+        // Según el tipo de mensaje realiza una acción u otra.
+        ProcesaAccion accion = Acciones.get(mensaje.getTipo());
+        if (accion != null) {
+            accion.procesa(this, mensaje, ctx);
+        } else {
+            this.metricas.incrementa(Metricas.DescartesTipo);
+        }
+    }
+
+    /**
+     * Interfaz para métodos que implementar la acción de procesar un mensaje.
+     * De esta forma se puede tener como una lista de métodos para cada
+     * tipo de mensaje. Reciben el servicio para que una sola lista sirva
+     * para todos.
+     */
+    private interface ProcesaAccion {
+        void procesa(Servicio serv, Mensaje mensaje, ContextoHebra ctx);
+    }
+
+    /**
+     * Crea el diccionario con los métodos que procesan los mensajes.
+     * Se crea una sola vez al cargar la clase y no se modifica después.
+     * 
+     * @return Diccionario con métodos para procesar mensaje según el tipo.
+     */
+    private static Map<TipoMensaje, ProcesaAccion> creaAcciones() {
+        Map<TipoMensaje, ProcesaAccion> acciones = new EnumMap<>(TipoMensaje.class);
+
+        // El cliente se va a identificar
+        acciones.put(
+                TipoMensaje.REGISTRO_SOLICITUD,
+                new ProcesaAccion() {
+                    @Override
+                    public void procesa(Servicio serv, Mensaje mensaje,
+                            ContextoHebra ctx) {
+                        serv.procesaSolicitudRegistro((RegistroSolicitud)mensaje, ctx);
+                    }
+                }
+        );
+
+        // Vamos a añadir, modificar o eliminar un contacto
+        acciones.put(
+                TipoMensaje.ACTUALIZACION,
+                new ProcesaAccion() {
+                    @Override
+                    public void procesa(Servicio serv, Mensaje mensaje,
+                            ContextoHebra ctx) {
+                        serv.procesaActualizacion((Actualizacion)mensaje, ctx);
+                    }
+                }
+        );
+
+        // Actualización codificada respecto a una anterior
+        acciones.put(
+                TipoMensaje.ACTUALIZACION_DELTA,
+                new ProcesaAccion() {
+                    @Override
+                    public void procesa(Servicio serv, Mensaje mensaje,
+                            ContextoHebra ctx) {
+                        serv.procesaActualizacionDelta((ActualizacionDelta)mensaje, ctx);
+                    }
+                }
+        );
+
+        return acciones;
+    }
+
+    /**
+     * Procesa un mensaje de solicitud de registro en el servicio.
+     * 
+     * @param mensaje Mensaje de solicitud de registro.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void procesaSolicitudRegistro(final RegistroSolicitud mensaje,
+            final ContextoHebra ctx) {
+        short usId   = mensaje.getUsuarioId();
+        short passwd = mensaje.getUsuarioPassword();
+        System.out.printf("Registro: 0x%X 0x%X\n", usId, passwd);
+                    
+        Mensaje respuesta;
+        if (this.mapaId != -1) {
+            // Ya estaba registrado, seguramente se perdió la respuesta.
+            // Le repetimos el mapa que tiene asignado. Con trabajadores esto
+            // se procesa en la hebra del mapa, que no puede usar el asignador,
+            // así que se cuentan los jugadores en su lista del mapa.
+            // Si ya no tiene lista es que ha abandonado el mapa y todavía
+            // no se ha olvidado: no se responde y el cliente lo reintentará.
+            if (this.vecinos == null)
+                return;
+            
+            respuesta = this.getRegistroCorrecto(mensaje.getNumSecuencia(),
+                    this.vecinos.size(), ctx);
+        } else if (this.credenciales != null
+                && !this.credenciales.comprueba(usId, passwd)) {
+            respuesta = ctx.getRegistroIncorrecto();
+            respuesta.setNumSecuencia(mensaje.getNumSecuencia());
+        } else {
+            // En caso de realizar la comprobación con éxito...
+            // actualizo las variables de identificación, asigando un mapa.
+            // El lote y la cola se conservan si vuelve a entrar tras morir.
+            this.userId = usId;
+            if (this.conLote && this.lote == null)
+                this.lote = ByteBuffer.allocate(Lote.TamMaximo);
+            if (this.emisor != null && this.salida == null)
+                this.salida = this.emisor.creaCola();
+            this.mapaId = this.asignador.asigna(this);
+            this.despachador.unirse(this, this.mapaId);
+            
+            // Envía mensaje de éxito.
+            respuesta = this.getRegistroCorrecto(mensaje.getNumSecuencia(),
+                    this.asignador.getNumJugadores(this.mapaId), ctx);
+        }
+        
+        // La respuesta no pasa por la cola de salida porque puede que la
+        // hebra dueña del mapa ya esté añadiendo a ella.
+        this.transmite(codifica(respuesta, ctx));
+    }
+    
+    /**
+     * Prepara la respuesta de registro correcto con el mapa asignado y,
+     * si se usa multicast, su grupo.
+     * 
+     * @param numSec Número de secuencia de la solicitud.
+     * @param numJugadores Número de jugadores del mapa.
+     * @param ctx Objetos reutilizables de la hebra.
+     * @return Mensaje de registro correcto.
+     */
+    private RegistroCorrecto getRegistroCorrecto(final short numSec,
+            final int numJugadores, final ContextoHebra ctx) {
+        RegistroCorrecto correcto = ctx.getRegistroCorrecto();
+        correcto.set(
+                numSec,
+                this.mapaId,
+                (byte)numJugadores,
+                (this.grupos != null) ? this.grupos.getDireccion(this.mapaId) : 0,
+                (this.grupos != null) ? this.grupos.getPuerto() : 0
+        );
+        return correcto;
+    }
+
+    /**
+     * Procesa el mensaje de actualización.
+     * La confirmación lleva el CRC16 del mensaje tal como se recibió, así que
+     * el de una delta es el de sus propios bytes y no el de la reconstruida.
+     * 
+     * @param mensaje Mensaje de actualización.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void procesaActualizacion(final Actualizacion mensaje,
+            final ContextoHebra ctx) {
+        // Pero si no te has autenticado -.-'
+        if (this.userId == -1)
+            return;
+        
+        // Registra el mensaje en la ventana. Los duplicados, los que llegan
+        // después de otro más reciente del mismo jugador y los que llegan
+        // tras abandonar el mapa sólo se confirman.
+        boolean recibido = this.ventana.recibe(mensaje.getNumSecuencia());
+        boolean nuevo = recibido && this.mundo != null
+                && this.ventana.esReciente(mensaje.getUserId(),
+                        mensaje.getNumSecuencia());
+        
+        // Se guarda como posible base de las siguientes deltas.
+        if (recibido)
+            this.guardaHistorial(mensaje);
+        
+        // TODO: Antes de enviar si no es de la misma ID comprobar
+        // que se ha podido atacar porque estaba cerca. Un anticheater.
+            
+        // Guarda este mensaje como el último recibido por el usuario.
+        if (nuevo && this.userId == mensaje.getUserId()) {
+            if (this.lastUpdate == null)
+                this.lastUpdate = new Actualizacion();
+            this.lastUpdate.copia(mensaje);
+        }
+        
+        // Envía la actualización a los que ven al personaje, o la guarda
+        // para el siguiente tick. Con la primera actualización el jugador
+        // recibe todo lo que tiene a la vista.
+        if (nuevo)
+            this.mundo.aplica(mensaje, this, ctx);
+        
+        // Envía mensaje de confirmación con el estado de la ventana
+        Confirmacion confirmacion = ctx.getConfirmacion();
+        confirmacion.set(
+                mensaje.getNumSecuencia(),
+                this.hashRecibido,
+                this.ventana.getAcumulado(),
+                this.ventana.getMascara()
+        );
+        this.envia(confirmacion, ctx);
+        
+        if (!nuevo)
+            return;
+        
+        // Comprueba si nos han eliminado
+        if (mensaje.getUserId() == this.userId && (
+                mensaje.getVida() == 0 || mensaje.getVida() >= 13)) {
+            System.out.println("[" + Integer.toHexString(userId) + "] Eliminandome");
+            this.vaciaLote();
+            this.despachador.abandona(this);
+        }
+    }
+    
+    /**
+     * Procesa una actualización codificada respecto a otra anterior.
+     * Se reconstruye la actualización completa y se procesa como cualquier
+     * otra. Si no se tiene la base se descarta sin confirmar.
+     * 
+     * @param mensaje Mensaje de actualización delta.
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    private void procesaActualizacionDelta(final ActualizacionDelta mensaje,
+            final ContextoHebra ctx) {
+        if (this.userId == -1 || this.historial == null)
+            return;
+        
+        Actualizacion base = this.historial[mensaje.getBase() & (TamHistorial - 1)];
+        if (base.getNumSecuencia() != mensaje.getBase()) {
+            this.metricas.incrementa(Metricas.DescartesBase);
+            return;
+        }
+        
+        Actualizacion completa = ctx.getActualizacion();
+        mensaje.aplica(base, completa);
+        this.procesaActualizacion(completa, ctx);
+    }
+    
+    /**
+     * Guarda una actualización recibida como base para las deltas.
+     * 
+     * @param mensaje Actualización completa recibida.
+     */
+    private void guardaHistorial(final Actualizacion mensaje) {
+        if (this.historial == null) {
+            this.historial = new Actualizacion[TamHistorial];
+            for (int i = 0; i < this.historial.length; i++) {
+                this.historial[i] = new Actualizacion();
+                this.historial[i].setNumSecuencia((short)-1);
+            }
+        }
+        
+        this.historial[mensaje.getNumSecuencia() & (TamHistorial - 1)]
+                .copia(mensaje);
+    }
+    
+    /**
+     * Saca al jugador de su mapa porque el cliente ha dejado de responder.
+     * Si seguía en el mapa, se avisa al resto de jugadores con una última
+     * actualización sin vida para que lo eliminen.
+     * Se llama desde la hebra dueña del servicio.
+     * 
+     * @param ctx Objetos reutilizables de la hebra.
+     */
+    public void desconecta(final ContextoHebra ctx) {
+        if (this.vecinos == null || !this.vecinos.remove(this))
+            return;
+        
+        System.out.println("[" + Integer.toHexString(userId) + "] Inactivo");
+        if (this.lastUpdate == null)
+            return;
+        
+        Actualizacion ultima = this.lastUpdate;
+        ultima.set(ultima.getNumSecuencia(), ultima.getUserId(),
+                ultima.getClase(), ultima.getExperiencia(), ultima.getSalud(),
+                (byte)0, ultima.getPosicion(), ultima.getTiempo());
+        
+        this.mundo.aplica(ultima, this, ctx);
+    }
+}
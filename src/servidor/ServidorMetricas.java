@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Hebra que sirve las métricas en texto por TCP sólo en la interfaz local.
+ * Responde a cualquier conexión con una respuesta HTTP mínima, así que se
+ * pueden consultar con un navegador, curl o nc. Atiende las conexiones de
+ * una en una, ya que sólo es para consultas puntuales, así que cada una
+ * tiene un tiempo máximo tras el que se cierra aunque esté a medias.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class ServidorMetricas extends Thread {
+    // Tiempo máximo para leer la petición, en milisegundos.
+    private static final int EsperaPeticion = 500;
+
+    // Tiempo máximo de cada conexión, en milisegundos. Un cliente que no
+    // lee la respuesta dejaría la escritura bloqueada, así que al cumplirse
+    // el vigilante cierra el socket.
+    private static final long MaxConexion = 2000;
+
+    private final ServerSocket socket;
+    private final Metricas metricas;
+    private final Timer vigilante = new Timer("Metricas-Vigilante", true);
+
+    /**
+     * Abre el puerto de las métricas.
+     *
+     * @param puerto Puerto TCP en la interfaz local.
+     * @param metricas Métricas que se sirven.
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public ServidorMetricas(final int puerto, final Metricas metricas)
+            throws IOException {
+        super("Metricas");
+        this.setDaemon(true);
+        this.metricas = metricas;
+        this.socket = new ServerSocket(puerto, 4, InetAddress.getLoopbackAddress());
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket cliente = this.socket.accept()) {
+                TimerTask cierre = this.vigila(cliente);
+                try {
+                    this.atiende(cliente);
+                } finally {
+                    cierre.cancel();
+                }
+            } catch (IOException ex) {
+                System.err.println("ERROR en las métricas: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Programa el cierre de una conexión cuando pase su tiempo máximo.
+     *
+     * @param cliente Conexión aceptada.
+     * @return Tarea del cierre, para cancelarla si se termina antes.
+     */
+    private TimerTask vigila(final Socket cliente) {
+        TimerTask cierre = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    cliente.close();
+                } catch (IOException ex) {
+                    // Ya estaba cerrada.
+                }
+            }
+        };
+        this.vigilante.schedule(cierre, MaxConexion);
+        return cierre;
+    }
+
+    /**
+     * Lee la petición, sea cual sea, y responde con las métricas.
+     *
+     * @param cliente Conexión aceptada.
+     * @throws IOException Si falla la conexión.
+     */
+    private void atiende(final Socket cliente) throws IOException {
+        cliente.setSoTimeout(EsperaPeticion);
+        BufferedReader entrada = new BufferedReader(new InputStreamReader(
+                cliente.getInputStream(), StandardCharsets.US_ASCII));
+        try {
+            String linea;
+            while ((linea = entrada.readLine()) != null && !linea.isEmpty()) {
+                // Las cabeceras de la petición no se usan.
+            }
+        } catch (SocketTimeoutException ex) {
+            // Sin petición HTTP también se responde.
+        }
+
+        StringBuilder texto = new StringBuilder();
+        this.metricas.escribe(texto);
+        byte[] cuerpo = texto.toString().getBytes(StandardCharsets.UTF_8);
+        String cabecera = "HTTP/1.0 200 OK\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + cuerpo.length + "\r\n\r\n";
+
+        OutputStream salida = cliente.getOutputStream();
+        salida.write(cabecera.getBytes(StandardCharsets.US_ASCII));
+        salida.write(cuerpo);
+        salida.flush();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+/**
+ * Tabla hash con claves numéricas primitivas.
+ * Usa direccionamiento abierto con sondeo lineal sobre dos vectores, así
+ * que buscar no reserva memoria ni convierte la clave en objeto. Sirve
+ * también para claves short, que se amplían a long sin coste.
+ * Los valores no pueden ser null. No es segura entre hebras.
+ *
+ * @param <V> Tipo de los valores.
+ * @author Benito Palacios Sánchez
+ */
+class TablaLong<V> {
+    // Se amplía al superar la mitad de ocupación, para que las cadenas
+    // de sondeo sean cortas.
+    private static final int CapacidadInicial = 16;
+
+    private long[] claves;
+    private Object[] valores;
+    private int mascara;
+    private int numElementos;
+
+    /**
+     * Crea una tabla vacía.
+     */
+    public TablaLong() {
+        this.claves  = new long[CapacidadInicial];
+        this.valores = new Object[CapacidadInicial];
+        this.mascara = CapacidadInicial - 1;
+    }
+
+    /**
+     * Obtiene el valor de una clave.
+     *
+     * @param clave Clave a buscar.
+     * @return Valor o null si no está.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final long clave) {
+        int i = this.busca(clave);
+        return (i < 0) ? null : (V)this.valores[i];
+    }
+
+    /**
+     * Comprueba si está una clave.
+     *
+     * @param clave Clave a buscar.
+     * @return Verdadero si está.
+     */
+    public boolean contiene(final long clave) {
+        return this.busca(clave) >= 0;
+    }
+
+    /**
+     * Guarda el valor de una clave, reemplazando el anterior si lo hay.
+     *
+     * @param clave Clave.
+     * @param valor Valor, distinto de null.
+     * @return Valor anterior o null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final long clave, final V valor) {
+        if (valor == null)
+            throw new NullPointerException("Null values are not allowed");
+
+        int i = hash(clave) & this.mascara;
+        while (this.valores[i] != null) {
+            if (this.claves[i] == clave) {
+                V anterior = (V)this.valores[i];
+                this.valores[i] = valor;
+                return anterior;
+            }
+            i = (i + 1) & this.mascara;
+        }
+
+        this.claves[i]  = clave;
+        this.valores[i] = valor;
+        if (++this.numElementos * 2 > this.valores.length)
+            this.amplia();
+        return null;
+    }
+
+    /**
+     * Quita una clave.
+     * Los elementos que venían después en la cadena de sondeo se mueven
+     * hacia atrás, así que no quedan huecos marcados como borrados.
+     *
+     * @param clave Clave a quitar.
+     * @return Valor que tenía o null si no estaba.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(final long clave) {
+        int i = this.busca(clave);
+        if (i < 0)
+            return null;
+
+        V anterior = (V)this.valores[i];
+        this.valores[i] = null;
+        this.numElementos--;
+
+        // Rellena el hueco con los siguientes que no estén en su sitio.
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mascara;
+            if (this.valores[j] == null)
+                break;
+
+            int ideal = hash(this.claves[j]) & this.mascara;
+            boolean enSuSitio = (i <= j) ? (i < ideal && ideal <= j)
+                                         : (i < ideal || ideal <= j);
+            if (enSuSitio)
+                continue;
+
+            this.claves[i]  = this.claves[j];
+            this.valores[i] = this.valores[j];
+            this.valores[j] = null;
+            i = j;
+        }
+
+        return anterior;
+    }
+
+    /**
+     * Obtiene el número de elementos.
+     *
+     * @return Número de elementos.
+     */
+    public int size() {
+        return this.numElementos;
+    }
+
+    /**
+     * Comprueba si la tabla está vacía.
+     *
+     * @return Verdadero si no tiene elementos.
+     */
+    public boolean isEmpty() {
+        return this.numElementos == 0;
+    }
+
+    /**
+     * Obtiene el número de huecos de la tabla, para recorrerla con getHueco
+     * sin crear un iterador.
+     *
+     * @return Número de huecos.
+     */
+    public int getNumHuecos() {
+        return this.valores.length;
+    }
+
+    /**
+     * Obtiene el valor guardado en un hueco.
+     * No se deben añadir ni quitar elementos mientras se recorre.
+     *
+     * @param hueco Índice del hueco, menor que getNumHuecos.
+     * @return Valor o null si el hueco está libre.
+     */
+    @SuppressWarnings("unchecked")
+    public V getHueco(final int hueco) {
+        return (V)this.valores[hueco];
+    }
+
+    /**
+     * Busca el hueco de una clave.
+     *
+     * @param clave Clave a buscar.
+     * @return Índice del hueco o -1 si no está.
+     */
+    private int busca(final long clave) {
+        int i = hash(clave) & this.mascara;
+        while (this.valores[i] != null) {
+            if (this.claves[i] == clave)
+                return i;
+            i = (i + 1) & this.mascara;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Duplica el tamaño de la tabla y vuelve a colocar los elementos.
+     */
+    private void amplia() {
+        long[] viejasClaves = this.claves;
+        Object[] viejosValores = this.valores;
+
+        this.claves  = new long[viejasClaves.length * 2];
+        this.valores = new Object[viejosValores.length * 2];
+        this.mascara = this.valores.length - 1;
+
+        for (int k = 0; k < viejosValores.length; k++) {
+            if (viejosValores[k] == null)
+                continue;
+
+            int i = hash(viejasClaves[k]) & this.mascara;
+            while (this.valores[i] != null)
+                i = (i + 1) & this.mascara;
+
+            this.claves[i]  = viejasClaves[k];
+            this.valores[i] = viejosValores[k];
+        }
+    }
+
+    /**
+     * Mezcla los bits de la clave para repartir bien claves consecutivas.
+     *
+     * @param clave Clave.
+     * @return Hash de la clave.
+     */
+    private static int hash(final long clave) {
+        long h = clave * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
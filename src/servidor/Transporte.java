@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Interfaz para enviar datagramas a los clientes.
+ * Permite que los servicios envíen sus mensajes sin conocer si el servidor
+ * usa un socket bloqueante o un canal NIO.
+ *
+ * @author Benito Palacios Sánchez
+ */
+interface Transporte {
+    /**
+     * Envía un datagrama a una dirección.
+     * Se envían los datos entre la posición y el límite del buffer. Al volver
+     * la posición no ha cambiado, así que el mismo buffer se puede enviar
+     * a varios destinos.
+     *
+     * @param datos Buffer con los datos a enviar.
+     * @param destino Dirección del cliente.
+     * @throws IOException Si se produce un error en el socket.
+     */
+    void envia(ByteBuffer datos, SocketAddress destino) throws IOException;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Benito Palacios Sánchez
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package servidor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.TimerTask;
+
+/**
+ * Tarea que escribe periódicamente las métricas en un fichero.
+ * Se escriben primero en un fichero temporal que después reemplaza al
+ * anterior, así que quien lo lea nunca ve un volcado a medias.
+ *
+ * @author Benito Palacios Sánchez
+ */
+class VolcadoMetricas extends TimerTask {
+    private final Metricas metricas;
+    private final Path fichero;
+    private final Path temporal;
+
+    /**
+     * Crea la tarea.
+     *
+     * @param ruta Ruta del fichero de volcado.
+     * @param metricas Métricas que se vuelcan.
+     */
+    public VolcadoMetricas(final String ruta, final Metricas metricas) {
+        this.metricas = metricas;
+        this.fichero = Paths.get(ruta).toAbsolutePath();
+        this.temporal = this.fichero.resolveSibling(
+                this.fichero.getFileName() + ".tmp");
+    }
+
+    @Override
+    public void run() {
+        StringBuilder texto = new StringBuilder();
+        this.metricas.escribe(texto);
+
+        try {
+            Files.write(this.temporal,
+                    texto.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(this.temporal, this.fichero,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            System.err.println("ERROR al volcar las métricas: " + ex.getMessage());
+        }
+    }
+}